@@ -1,15 +1,18 @@
+import loaders.MeshCache;
 import loaders.OBJLoader;
 import los.Raycaster;
 import rasterizer.*;
 import edu.princeton.cs.algs4.StdDraw;
 
 import java.awt.*;
+import java.io.File;
 import java.io.IOException;
 import java.util.Random;
 
 import math.Vec4;
 import math.Quaternion;
 import world.Mesh;
+import world.TextureCache;
 import world.UVTexture;
 import world.World;
 
@@ -17,11 +20,13 @@ public class Main {
     private static int X = 1000;
     private static int Y = 1000;
     private static int its = 50;
+    private static final int HEADLESS_FRAMES = 1000;
 
     private static Mesh benchmarkMesh;
     private static Camera benchmarkCamera;
     private static MultithreadedRenderer pixelShader;
     private static World world;
+    private static TextureCache textures;
 
     private static int[][] randomX;
     private static int[][] randomY;
@@ -32,18 +37,39 @@ public class Main {
     private static double currentFPS = 0.0;
 
     public static void main(String[] args) {
-        StdDraw.setCanvasSize(X, Y);
-        StdDraw.setXscale(0, X);
-        StdDraw.setYscale(Y, 0);
-        StdDraw.enableDoubleBuffering();
+        if (args.length > 1 && args[0].equals("--bench-obj")) {
+            BenchOBJ(args[1]);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--bench-texels")) {
+            BenchTexels(args.length > 1 ? Integer.parseInt(args[1]) : 1024);
+            return;
+        }
+        boolean headless = args.length > 0 && args[0].equals("--headless");
+        FrameBuffer target;
+
+        if (headless) {
+            target = new FrameBuffer(X, Y);
+        } else {
+            StdDraw.setCanvasSize(X, Y);
+            StdDraw.setXscale(0, X);
+            StdDraw.setYscale(Y, 0);
+            StdDraw.enableDoubleBuffering();
+
+            TotallyLegit.init();
+            target = TotallyLegit.frameBuffer;
+        }
 
-        TotallyLegit.init();
-        pixelShader = new MultithreadedRenderer(8, X, Y);
+        pixelShader = new MultithreadedRenderer(8, target);
+        pixelShader.setRasterMode(MultithreadedRenderer.RasterMode.TILES);
+        pixelShader.setRasterizer(PixelShader.Rasterizer.HALF_SPACE);
         world = new World();
+        textures = new TextureCache();
 
         try {
-            benchmarkMesh = OBJLoader.load("models/house.obj");
-            benchmarkMesh.texture = new UVTexture("models/house.png");
+            benchmarkMesh = MeshCache.load("models/house.obj");
+            // decodes in the background, the first few frames draw with a placeholder
+            benchmarkMesh.texture = textures.acquire("models/house.png");
             world.addMesh(benchmarkMesh);
         }
         catch (IOException e) {
@@ -57,8 +83,14 @@ public class Main {
 
         benchmarkCamera = new Camera(X, Y);
 
+        int framesLeft = headless ? HEADLESS_FRAMES : -1;
+        if (headless) {
+            // nobody's watching the first frames, but the last one had better be textured
+            textures.finishLoading();
+        }
+
         double last = System.nanoTime() * 1e-9;
-        while (true) {
+        while (framesLeft != 0) {
             double now = System.nanoTime() * 1e-9;
             double time = now - last;
             last = now;
@@ -77,9 +109,10 @@ public class Main {
 
             benchmarkMesh.setRotation(rotX);
 
-            render();
+            render(target, !headless);
 
             frameCount++;
+            if (framesLeft > 0) --framesLeft;
 
             long a = System.nanoTime();
             double elapsed = (a - lastFPSTime) / 1e9;
@@ -87,18 +120,116 @@ public class Main {
             if (elapsed >= 1.0) {
                 currentFPS = frameCount / elapsed;
                 System.out.printf("FPS: %.1f  |  Triangles: %d  |  Vertices transformed: %d%n",
-                        currentFPS, benchmarkMesh.tris.length, benchmarkMesh.tris.length * 3);
+                        currentFPS, benchmarkMesh.triCount, benchmarkMesh.vertexCount);
                 frameCount = 0;
                 lastFPSTime = a;
             }
         }
+
+        // only the headless run ever gets here
+        try {
+            target.writePNG("headless.png");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        pixelShader.cleanup();
+        textures.shutdown();
     }
 
-    private static void render() {
+    private static void render(FrameBuffer target, boolean present) {
+        textures.update();
         pixelShader.loadCamera(benchmarkCamera);
-        TotallyLegit.clear();
+        target.clear();
         world.render(pixelShader);
-        TotallyLegit.show();
+        if (present) {
+            TotallyLegit.show();
+        }
+    }
+
+    /**
+     * Parse throughput of OBJLoader on one file, best of a few runs so the JIT and page cache are warm.
+     */
+    public static void BenchOBJ(String filename) {
+        double megabytes = new File(filename).length() / (1024.0 * 1024.0);
+        long best = Long.MAX_VALUE;
+        try {
+            for (int i = 0; i < 10; i++) {
+                long start = System.nanoTime();
+                Mesh mesh = OBJLoader.load(filename);
+                long time = System.nanoTime() - start;
+                best = Math.min(best, time);
+                System.out.printf("%s: %d tris, %.1f ms, %.1f MB/s%n",
+                        filename, mesh.triCount, time / 1e6, megabytes / (time / 1e9));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        System.out.printf("best %.1f ms, %.1f MB/s%n", best / 1e6, megabytes / (best / 1e9));
+    }
+
+    /**
+     * Texel fetch throughput of the mip level samplers, walking a size x size texture the way spans would at a few
+     * angles and zooms, plain and BC1 compressed. Best of a few runs per pattern.
+     */
+    public static void BenchTexels(int size) {
+        int[] texels = new int[size * size];
+        Random random = new Random(1);
+        for (int i = 0; i < texels.length; i++) {
+            texels[i] = random.nextInt();
+        }
+        UVTexture.Level plain = new UVTexture.Level(texels, size, size);
+        UVTexture.BlockCache cache = new UVTexture.BlockCache();
+
+        String[] names = {"along rows", "down columns", "diagonal, 2x minified"};
+        // texels per pixel in u and v
+        float[][] steps = {{1, 0}, {0, 1}, {1.73f, 1.0f}};
+        int spans = 1024, spanLength = 1024;
+        int checksum = 0;
+        for (UVTexture.Level level : new UVTexture.Level[]{plain, plain.compress()}) {
+            for (int p = 0; p < names.length; p++) {
+                float du = steps[p][0] / size, dv = steps[p][1] / size;
+                long best = Long.MAX_VALUE;
+                for (int run = 0; run < 10; run++) {
+                    long start = System.nanoTime();
+                    checksum += BenchSampleSpans(level, cache, du, dv, spans, spanLength);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.printf("%dx%d %-5s %-22s %.1f Mtexels/s%n", size, size, level.isCompressed() ? "bc1" : "plain",
+                        names[p], (double) spans * spanLength / (best / 1e3));
+            }
+        }
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    private static int BenchSampleSpans(UVTexture.Level level, UVTexture.BlockCache cache, float du, float dv,
+                                        int spans, int spanLength) {
+        int sum = 0;
+        for (int s = 0; s < spans; s++) {
+            // each span starts one pixel further along the perpendicular, so the texture gets swept like a tri would
+            float u = -dv * s, v = du * s;
+            // same pick the span kernels make
+            if (level.isCompressed()) {
+                for (int i = 0; i < spanLength; i++) {
+                    sum += level.getRGBbyUV(u, v, cache);
+                    u += du;
+                    v += dv;
+                }
+            } else if (level.pow2) {
+                for (int i = 0; i < spanLength; i++) {
+                    sum += level.getRGBbyUVPow2(u, v);
+                    u += du;
+                    v += dv;
+                }
+            } else {
+                for (int i = 0; i < spanLength; i++) {
+                    sum += level.getRGBbyUV(u, v);
+                    u += du;
+                    v += dv;
+                }
+            }
+        }
+        return sum;
     }
 
     public static void Bench() {
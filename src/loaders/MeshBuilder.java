@@ -0,0 +1,170 @@
+package loaders;
+
+import world.Mesh;
+import world.UVTexture;
+
+import java.util.Arrays;
+
+/**
+ * Collects vertices and tris straight into the flat arrays Mesh wants, growing them as it goes, so loading never
+ * makes an object per vertex or per tri.
+ * Vertices are numbered in the order they're added (from 0), which lines up with how OBJ faces count them.
+ * weldVertex() is for formats that don't share vertices between tris (STL): identical positions come back as
+ * the same index, found through an open addressing hash of vertex indices so nothing gets boxed.
+ */
+public class MeshBuilder {
+    private float[] positions;
+    private int positionCount;
+    private int[] indices;
+    // stays null until a tri comes with UVs, and if none ever does the mesh doesn't get a UV array at all
+    private float[] uvs;
+    private int triCount;
+
+    // vertex index + 1 per slot, 0 is empty. Power of 2 sized, kept at most half full.
+    private int[] weldTable;
+    private int weldCount;
+
+    public MeshBuilder() {
+        this(256, 256);
+    }
+
+    /**
+     * Presized, for when the format says up front how much is coming.
+     */
+    public MeshBuilder(int vertexCapacity, int triCapacity) {
+        positions = new float[3 * Math.max(1, vertexCapacity)];
+        indices = new int[3 * Math.max(1, triCapacity)];
+    }
+
+    /**
+     * @return the new vertex's index
+     */
+    public int addVertex(float x, float y, float z) {
+        if (positionCount + 3 > positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+        positions[positionCount] = x;
+        positions[positionCount + 1] = y;
+        positions[positionCount + 2] = z;
+        positionCount += 3;
+        return positionCount / 3 - 1;
+    }
+
+    /**
+     * Like addVertex, but if a vertex at exactly this position was welded before, you get that one back.
+     * -0 and 0 count as the same. Don't mix with addVertex for the same positions, those aren't looked up.
+     */
+    public int weldVertex(float x, float y, float z) {
+        if (weldTable == null || (weldCount + 1) * 2 > weldTable.length) {
+            growWeldTable();
+        }
+        int mask = weldTable.length - 1;
+        int slot = weldHash(x, y, z) & mask;
+        while (weldTable[slot] != 0) {
+            int o = (weldTable[slot] - 1) * 3;
+            if (sameBits(positions[o], x) && sameBits(positions[o + 1], y) && sameBits(positions[o + 2], z)) {
+                return weldTable[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int index = addVertex(x, y, z);
+        weldTable[slot] = index + 1;
+        ++weldCount;
+        return index;
+    }
+
+    private static boolean sameBits(float a, float b) {
+        return Float.floatToRawIntBits(a + 0f) == Float.floatToRawIntBits(b + 0f);
+    }
+
+    private static int weldHash(float x, float y, float z) {
+        // + 0f turns -0 into 0 so they hash the same
+        int h = Float.floatToRawIntBits(x + 0f) * 0x9E3779B1;
+        h = (h ^ Float.floatToRawIntBits(y + 0f)) * 0x85EBCA77;
+        h = (h ^ Float.floatToRawIntBits(z + 0f)) * 0xC2B2AE3D;
+        return h ^ (h >>> 16);
+    }
+
+    private void growWeldTable() {
+        int[] old = weldTable;
+        if (old == null) {
+            // sized off the vertex capacity, which presized builders already set to about what's coming
+            int size = 1024;
+            while (size < positions.length / 3 * 2) {
+                size <<= 1;
+            }
+            weldTable = new int[size];
+            return;
+        }
+
+        weldTable = new int[old.length * 2];
+        int mask = weldTable.length - 1;
+        for (int entry : old) {
+            if (entry == 0) continue;
+            int o = (entry - 1) * 3;
+            int slot = weldHash(positions[o], positions[o + 1], positions[o + 2]) & mask;
+            while (weldTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            weldTable[slot] = entry;
+        }
+    }
+
+    public int getVertexCount() {
+        return positionCount / 3;
+    }
+
+    public int getTriCount() {
+        return triCount;
+    }
+
+    /**
+     * A tri without UVs, it samples (0, 0) like DUMMY_UV always did.
+     */
+    public void addTri(int a, int b, int c) {
+        appendTri(a, b, c);
+        if (uvs != null) {
+            Arrays.fill(uvs, (triCount - 1) * 6, triCount * 6, 0f);
+        }
+    }
+
+    public void addTri(int a, float aU, float aV, int b, float bU, float bV, int c, float cU, float cV) {
+        appendTri(a, b, c);
+        if (uvs == null) {
+            // every tri so far had none, and new arrays are already all (0, 0)
+            uvs = new float[indices.length * 2];
+        }
+        int o = (triCount - 1) * 6;
+        uvs[o] = aU;
+        uvs[o + 1] = aV;
+        uvs[o + 2] = bU;
+        uvs[o + 3] = bV;
+        uvs[o + 4] = cU;
+        uvs[o + 5] = cV;
+    }
+
+    private void appendTri(int a, int b, int c) {
+        if (triCount * 3 + 3 > indices.length) {
+            indices = Arrays.copyOf(indices, indices.length * 2);
+            if (uvs != null) {
+                uvs = Arrays.copyOf(uvs, uvs.length * 2);
+            }
+        }
+        int i = triCount * 3;
+        indices[i] = a;
+        indices[i + 1] = b;
+        indices[i + 2] = c;
+        ++triCount;
+    }
+
+    /**
+     * Trims everything down to size and hands it to a new Mesh. Don't keep adding to the builder after this.
+     */
+    public Mesh build(UVTexture texture) {
+        return new Mesh(
+                Arrays.copyOf(positions, positionCount),
+                Arrays.copyOf(indices, triCount * 3),
+                uvs != null ? Arrays.copyOf(uvs, triCount * 6) : null,
+                texture);
+    }
+}
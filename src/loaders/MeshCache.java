@@ -0,0 +1,116 @@
+package loaders;
+
+import world.Mesh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Loads OBJ/STL files through a cache of MeshFiles, so only the first launch after a model changes pays for
+ * parsing. Every launch after that just maps the converted file.
+ * Cache files go in a .meshcache folder next to the model, or in -Dmesh.cache.dir if that's set (see
+ * cachePath), and remember the size, mtime and CRC32C of what they were made from:
+ * <ul>
+ *     <li>size and mtime match: use it, without even reading the source</li>
+ *     <li>only size matches: hash the source. Same hash means someone just touched it (git checkout, copying),
+ *     so keep the cache and remember the new mtime</li>
+ *     <li>anything else: parse the source again and overwrite the cache</li>
+ * </ul>
+ * If the cache can't be written (read only folder, full disk) you still get the parsed mesh, just uncached.
+ * Meshes come back without a texture like the loaders' do, and mapped ones are read only, see MeshFile.
+ */
+public class MeshCache {
+    public static final String CACHE_DIR_PROPERTY = "mesh.cache.dir";
+    public static final String EXTENSION = ".rmsh";
+
+    public static Mesh load(String filename) throws IOException {
+        Path source = Paths.get(filename);
+        Path cached = cachePath(source);
+        MeshFile.Stamp stamp = new MeshFile.Stamp(Files.size(source), Files.getLastModifiedTime(source).toMillis(), 0);
+
+        boolean hashed = false;
+        if (Files.exists(cached)) {
+            try {
+                MeshFile.Stamp old = new MeshFile.Stamp();
+                MeshFile.readStamp(cached, old);
+                if (old.size == stamp.size) {
+                    if (old.mtime == stamp.mtime) {
+                        return MeshFile.map(cached);
+                    }
+                    stamp.hash = hash(source);
+                    hashed = true;
+                    if (old.hash == stamp.hash) {
+                        MeshFile.writeStamp(cached, stamp);
+                        return MeshFile.map(cached);
+                    }
+                }
+            } catch (IOException e) {
+                // old version, truncated, whatever: it gets rebuilt below
+            }
+        }
+
+        Mesh mesh = parse(filename);
+        try {
+            if (!hashed) {
+                stamp.hash = hash(source);
+            }
+            Files.createDirectories(cached.getParent());
+            // written next to the real thing and moved over it, so a crash halfway can't leave a broken cache
+            // that still looks valid, and a second instance never maps a half written file
+            Path temp = Files.createTempFile(cached.getParent(), cached.getFileName().toString(), ".tmp");
+            try {
+                MeshFile.write(mesh, temp, stamp);
+                Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't cache " + filename + ": " + e);
+        }
+        return mesh;
+    }
+
+    /**
+     * In a shared -Dmesh.cache.dir the name also gets a hash of where the source is, otherwise every model
+     * called house.obj would keep overwriting each other's cache.
+     */
+    public static Path cachePath(Path source) {
+        String dir = System.getProperty(CACHE_DIR_PROPERTY);
+        Path absolute = source.toAbsolutePath().normalize();
+        if (dir == null) {
+            return absolute.getParent().resolve(".meshcache").resolve(absolute.getFileName() + EXTENSION);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(absolute.toString().getBytes(StandardCharsets.UTF_8));
+        return Paths.get(dir).resolve(String.format("%s-%08x%s", absolute.getFileName(), crc.getValue(), EXTENSION));
+    }
+
+    private static Mesh parse(String filename) throws IOException {
+        String lower = filename.toLowerCase();
+        if (lower.endsWith(".obj")) {
+            return OBJLoader.load(filename);
+        }
+        if (lower.endsWith(".stl")) {
+            return STLLoader.load(filename);
+        }
+        throw new IOException("Don't know how to load " + filename);
+    }
+
+    private static long hash(Path source) throws IOException {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(source)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
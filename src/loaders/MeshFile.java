@@ -0,0 +1,199 @@
+package loaders;
+
+import world.Mesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Our own binary mesh format, laid out exactly like Mesh's buffers so it can be memory mapped and rendered
+ * straight out of the page cache. Nothing gets parsed or copied onto the heap, so a scanned asset with tens of
+ * millions of tris costs a few hundred bytes of heap (plus the renderer's per frame vertex cache).
+ * Loading one is a header read and a few mmap calls, no parsing at all, which is what MeshCache leans on.
+ * Everything is little endian and 4 byte aligned:
+ * <pre>
+ *   0  int    MAGIC
+ *   4  int    VERSION
+ *   8  int    vertex count
+ *  12  int    tri count
+ *  16  int    flags (FLAG_UVS)
+ *  20  float  bounds, Mesh.BOUNDS_FLOATS of them (see Mesh.getBounds)
+ *  48  long   source file size  \
+ *  56  long   source file mtime  | what this was converted from, see Stamp. Zeros if nothing.
+ *  64  long   source file hash  /
+ *  72  8 bytes of zeros
+ *  80  float  positions, x y z per vertex
+ *      int    indices, 3 per tri
+ *      float  face normals, x y z per tri
+ *      float  uvs, u v per tri corner (only with FLAG_UVS)
+ * </pre>
+ * Each section has to fit in one mapping (2GB), which is ~89M tris for the UV section.
+ * Files aren't validated beyond the header: indices pointing outside the vertices will blow up in the vertex
+ * stage. Only map files write() made.
+ */
+public class MeshFile {
+    public static final int MAGIC = 0x48534D52; // "RMSH" read as a little endian int
+    public static final int VERSION = 2;
+    public static final int FLAG_UVS = 1;
+    private static final int HEADER_BYTES = 80;
+    private static final int STAMP_OFFSET = 48;
+
+    /**
+     * Identifies the file a mesh file was converted from, so a cache can tell when it's stale.
+     */
+    public static class Stamp {
+        public long size;
+        // in millis
+        public long mtime;
+        public long hash;
+
+        public Stamp() {
+        }
+
+        public Stamp(long size, long mtime, long hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+    }
+
+    public static void write(Mesh mesh, Path path) throws IOException {
+        write(mesh, path, new Stamp());
+    }
+
+    public static void write(Mesh mesh, Path path, Stamp source) throws IOException {
+        int flags = mesh.uvs != null ? FLAG_UVS : 0;
+        long positionBytes = mesh.vertexCount * 3L * 4;
+        long triBytes = mesh.triCount * 3L * 4;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(mesh.vertexCount).putInt(mesh.triCount).putInt(flags);
+            float[] bounds = new float[Mesh.BOUNDS_FLOATS];
+            mesh.getBounds(bounds);
+            for (float f : bounds) {
+                header.putFloat(f);
+            }
+            header.putLong(source.size).putLong(source.mtime).putLong(source.hash);
+            header.clear();
+            channel.write(header, 0);
+
+            // duplicate() so the copy doesn't move the mesh's own buffer positions around
+            long offset = HEADER_BYTES;
+            map(channel, FileChannel.MapMode.READ_WRITE, offset, positionBytes).asFloatBuffer()
+                    .put(mesh.positions.duplicate().rewind());
+            offset += positionBytes;
+            map(channel, FileChannel.MapMode.READ_WRITE, offset, triBytes).asIntBuffer()
+                    .put(mesh.indices.duplicate().rewind());
+            offset += triBytes;
+            map(channel, FileChannel.MapMode.READ_WRITE, offset, triBytes).asFloatBuffer()
+                    .put(mesh.faceNormals.duplicate().rewind());
+            offset += triBytes;
+            if (mesh.uvs != null) {
+                map(channel, FileChannel.MapMode.READ_WRITE, offset, triBytes * 2).asFloatBuffer()
+                        .put(mesh.uvs.duplicate().rewind());
+            }
+        }
+    }
+
+    /**
+     * Maps a file made by write() and wraps a Mesh around the mappings. The mappings outlive the file channel,
+     * and the OS pages the data in (and out) as it gets used.
+     */
+    public static Mesh map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, path);
+            header.position(8);
+            int vertexCount = header.getInt();
+            int triCount = header.getInt();
+            int flags = header.getInt();
+            float[] bounds = new float[Mesh.BOUNDS_FLOATS];
+            for (int i = 0; i < bounds.length; ++i) {
+                bounds[i] = header.getFloat();
+            }
+
+            long positionBytes = vertexCount * 3L * 4;
+            long triBytes = triCount * 3L * 4;
+            boolean hasUVs = (flags & FLAG_UVS) != 0;
+            long expected = HEADER_BYTES + positionBytes + triBytes * 2 + (hasUVs ? triBytes * 2 : 0);
+            if (vertexCount < 0 || triCount < 0 || channel.size() != expected) {
+                throw new IOException(path + " should be " + expected + " bytes for " + vertexCount + " vertices and "
+                        + triCount + " tris, it's " + channel.size());
+            }
+
+            long offset = HEADER_BYTES;
+            FloatBuffer positions = map(channel, FileChannel.MapMode.READ_ONLY, offset, positionBytes).asFloatBuffer();
+            offset += positionBytes;
+            IntBuffer indices = map(channel, FileChannel.MapMode.READ_ONLY, offset, triBytes).asIntBuffer();
+            offset += triBytes;
+            FloatBuffer normals = map(channel, FileChannel.MapMode.READ_ONLY, offset, triBytes).asFloatBuffer();
+            offset += triBytes;
+            FloatBuffer uvs = hasUVs
+                    ? map(channel, FileChannel.MapMode.READ_ONLY, offset, triBytes * 2).asFloatBuffer()
+                    : null;
+
+            return new Mesh(positions, indices, uvs, normals, bounds, null);
+        }
+    }
+
+    /**
+     * Reads just the source stamp out of a mesh file's header.
+     */
+    public static void readStamp(Path path, Stamp out) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, path);
+            header.position(STAMP_OFFSET);
+            out.size = header.getLong();
+            out.mtime = header.getLong();
+            out.hash = header.getLong();
+        }
+    }
+
+    /**
+     * Rewrites just the source stamp, for when the source got touched but turned out to be unchanged.
+     */
+    public static void writeStamp(Path path, Stamp stamp) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            readHeader(channel, path);
+            ByteBuffer buffer = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putLong(stamp.size).putLong(stamp.mtime).putLong(stamp.hash);
+            buffer.flip();
+            channel.write(buffer, STAMP_OFFSET);
+        }
+    }
+
+    /**
+     * Reads and checks the header, returns it flipped and ready to read from the start.
+     */
+    private static ByteBuffer readHeader(FileChannel channel, Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.read(header, 0) != HEADER_BYTES) {
+            throw new IOException(path + " is too short to be a mesh file");
+        }
+        header.flip();
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException(path + " isn't a mesh file");
+        }
+        int version = header.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(path + " is mesh file version " + version + ", this only reads " + VERSION);
+        }
+        return header;
+    }
+
+    private static ByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long offset, long bytes) throws IOException {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IOException("mesh section of " + bytes + " bytes doesn't fit in one mapping");
+        }
+        MappedByteBuffer buffer = channel.map(mode, offset, bytes);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -1,122 +1,391 @@
 package loaders;
 
-import math.Vec4;
 import world.Mesh;
-import world.Tri;
-import world.UVCoord;
 
-import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-import static world.UVCoord.DUMMY_UV;
-
+/**
+ * Parses the raw bytes (see TextScanner) with no strings and no per line or per token garbage. The file is
+ * mapped rather than read onto the heap.
+ * Big files get cut into line aligned chunks that are parsed at the same time on the common ForkJoinPool. Each
+ * chunk numbers its own v and vt lines from 0. Then a merge step works out where each chunk's vertices land
+ * globally, resolves face indices against that, and writes every chunk's tris into the final arrays.
+ * Understands v, vt and f (polygons get fanned into tris, indices can be negative i.e. relative), and ASCII STL
+ * style "vertex" lines, which turn into their own unindexed tris after everything else.
+ * Everything else (vn, o, g, s, usemtl...) is skipped.
+ */
 public class OBJLoader {
+    // below this a file's parsed in one go, the fork/merge overhead isn't worth it
+    public static final int CHUNK_BYTES = 1 << 22;
+    // vt of a corner whose face didn't give one. Not -1, a relative vt can legitimately be -1 before the merge.
+    private static final int NO_UV = Integer.MIN_VALUE;
+
     public static Mesh load(String filename) throws IOException {
-        File file = new File(filename);
-        byte[] allBytes = Files.readAllBytes(file.toPath());
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(filename + " is over 2GB, which is more than one mapping holds");
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return parse(data);
+    }
 
-        String header = new String(allBytes, 0, Math.min(256, allBytes.length), StandardCharsets.UTF_8);
-        return loadAscii(header, allBytes);
+    static Mesh parse(ByteBuffer data) throws IOException {
+        Chunk[] chunks = split(data);
+        try {
+            if (chunks.length == 1) {
+                chunks[0].parse(data);
+            } else {
+                ForkJoinPool.commonPool().invoke(new ParseChunks(data, chunks, 0, chunks.length));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return merge(chunks);
+    }
 
+    /**
+     * Cuts the file every CHUNK_BYTES, moving each cut forward to just after the next newline.
+     */
+    private static Chunk[] split(ByteBuffer data) {
+        int size = data.limit();
+        int count = Math.max(1, (size + CHUNK_BYTES - 1) / CHUNK_BYTES);
+        Chunk[] chunks = new Chunk[count];
+        int start = 0;
+        int used = 0;
+        for (int i = 0; i < count && start < size; ++i) {
+            int end = i == count - 1 ? size : Math.max(start, (int) Math.min(size, (long) (i + 1) * CHUNK_BYTES));
+            while (end < size && data.get(end - 1) != '\n') {
+                ++end;
+            }
+            chunks[used++] = new Chunk(start, end);
+            start = end;
+        }
+        return used == 0 ? new Chunk[]{new Chunk(0, 0)} : Arrays.copyOf(chunks, used);
     }
 
-    private static int objParseInt(String s) {
-        return s.isEmpty() ? -1 : Integer.parseInt(s) - 1;
+    // never serialized, ForkJoinTask just happens to be Serializable
+    @SuppressWarnings("serial")
+    private static class ParseChunks extends RecursiveAction {
+        private final ByteBuffer data;
+        private final Chunk[] chunks;
+        private final int from, to;
+
+        ParseChunks(ByteBuffer data, Chunk[] chunks, int from, int to) {
+            this.data = data;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    chunks[from].parse(data);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ParseChunks(data, chunks, from, mid), new ParseChunks(data, chunks, mid, to));
+        }
     }
 
-    private static Mesh loadAscii(String headerLine, byte[] data) throws IOException {
-        String content = new String(data, StandardCharsets.UTF_8);
-        String[] lines = content.split("\n");
-
-        // these are basically made immutable in the code, although it's not actually enforced.
-        // TODO: maybe look into making them enforcably immutable?.
-        ArrayList<Vec4> vectors = new ArrayList<>();
-        ArrayList<UVCoord> uvCoordinates = new ArrayList<>();
-        ArrayList<Tri> tris = new ArrayList<>();
-
-        for (String line : lines) {
-            String[] things = line.split("\\s+");
-            if (things.length < 1) continue;
-            switch(things[0]) {
-                case "v":
-                    float x = Float.parseFloat(things[1]);
-                    float y = Float.parseFloat(things[2]);
-                    float z = Float.parseFloat(things[3]);
-                    float w = 1.0f; // we can write code to parse this, but I don't really see the value.
-                    vectors.add(new Vec4(x, y, z, w));
-                    break;
-                case "vt":
-                    float u = Float.parseFloat(things[1]);
-                    float v = 0.0f;
-                    if (things.length >= 3) {
-                        v = Float.parseFloat(things[2]);
+    /**
+     * Everything one chunk of the file defines, numbered locally: its first v is vertex 0, its first vt is uv 0.
+     * Face corners get stored already resolved to global indices where possible (positive OBJ indices are
+     * global anyway). Negative ones can only be resolved against the chunk's own count, so those stay local and
+     * the merge adds the chunk's offset. They're listed separately since most files never use them.
+     */
+    private static class Chunk {
+        final int start, end;
+
+        float[] positions = new float[3 * 256];
+        int vertexCount;
+        // u, v of every vt line
+        float[] uvTable = new float[2 * 256];
+        int uvCount;
+        // v and vt of every tri corner, vt is NO_UV if the face didn't have one
+        int[] corners = new int[3 * 256];
+        int[] uvCorners = new int[3 * 256];
+        int triCount;
+        // slots in corners / uvCorners that hold a chunk local index
+        int[] localCorners = new int[0];
+        int localCornerCount;
+        int[] localUVCorners = new int[0];
+        int localUVCornerCount;
+        // x, y, z of every STL style vertex line. They get added after all the OBJ vertices so they don't throw
+        // off the numbering faces use.
+        float[] stlPositions = new float[0];
+        int stlCount;
+
+        // where this chunk's stuff starts in the merged mesh
+        int vertexOffset, uvOffset, triOffset, stlOffset;
+
+        Chunk(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        void parse(ByteBuffer data) throws IOException {
+            TextScanner in = new TextScanner(data, start, end);
+
+            while (in.hasMore()) {
+                in.skipSpaces();
+                byte first = in.peek();
+                byte second = in.peek(1);
+
+                if (first == 'v' && TextScanner.isSpace(second)) {
+                    ++in.pos;
+                    if (vertexCount * 3 + 3 > positions.length) {
+                        positions = Arrays.copyOf(positions, positions.length * 2);
                     }
-                    float w1 = 0.0f;
-                    if (things.length >= 4) {
-                        w1 = Float.parseFloat(things[3]);
+                    positions[vertexCount * 3] = in.parseFloat();
+                    positions[vertexCount * 3 + 1] = in.parseFloat();
+                    positions[vertexCount * 3 + 2] = in.parseFloat();
+                    // w is always 1, we can write code to parse it, but I don't really see the value.
+                    ++vertexCount;
+                } else if (first == 'v' && second == 't' && TextScanner.isSpace(in.peek(2))) {
+                    in.pos += 2;
+                    float u = in.parseFloat();
+                    float v = in.atLineEnd() ? 0.0f : in.parseFloat();
+                    // the optional w never gets used by anything, so it isn't kept
+                    if (uvCount * 2 + 2 > uvTable.length) {
+                        uvTable = Arrays.copyOf(uvTable, uvTable.length * 2);
                     }
-                    uvCoordinates.add(new UVCoord(u, v, w1));
-                    break;
-                case "f":
-                    int[][] verts = Arrays.stream(things, 1, things.length)
-                            .map(p -> Arrays.stream(p.split("/")).mapToInt(OBJLoader::objParseInt).toArray())
-                            .toArray(int[][]::new);
-                    int v0 = verts[0][0];
-                    int vt0Ind = (verts[0].length >= 2) ? verts[0][1] : -1;
-                    UVCoord vt0 = vt0Ind >= 0 ? uvCoordinates.get(vt0Ind) : DUMMY_UV;
-                    // int vn0 = (verts[0].length >= 3) ? verts[0][2] : -1;
-
-                    for (int i = 1; i < verts.length - 1; ++i) {
-                        int v1 = verts[i][0];
-                        int vt1Ind = (verts[i].length >= 2) ? verts[i][1] : -1;
-                        UVCoord vt1 = vt1Ind >= 0 ? uvCoordinates.get(vt1Ind) : DUMMY_UV;
-                        int v2 = verts[i+1][0];
-                        int vt2Ind = (verts[i+1].length >= 2) ? verts[i+1][1] : -1;
-                        UVCoord vt2 = vt2Ind >= 0 ? uvCoordinates.get(vt2Ind) : DUMMY_UV;
-
-                        tris.add(new Tri(
-                                vectors.get(v0), vt0,
-                                vectors.get(v1), vt1,
-                                vectors.get(v2), vt2
-                        ));
+                    uvTable[uvCount * 2] = u;
+                    uvTable[uvCount * 2 + 1] = v;
+                    ++uvCount;
+                } else if (first == 'f' && TextScanner.isSpace(second)) {
+                    ++in.pos;
+                    parseFace(in);
+                } else if (in.lookingAt("vertex")) {
+                    in.pos += "vertex".length();
+                    if (stlCount * 3 + 3 > stlPositions.length) {
+                        stlPositions = Arrays.copyOf(stlPositions, Math.max(3 * 256, stlPositions.length * 2));
                     }
-                    break;
-//                case "vn":
-//                    We can't actually process vertex normals right now since we're just flat shading
+                    stlPositions[stlCount * 3] = in.parseFloat();
+                    stlPositions[stlCount * 3 + 1] = in.parseFloat();
+                    stlPositions[stlCount * 3 + 2] = in.parseFloat();
+                    ++stlCount;
+                }
+//                vn: We can't actually process vertex normals right now since we're just flat shading
 //                    and I honestly can't be bothered to figure out how to store it
-//                    break;
-//                case "vp":
-//                    These specify non polygon parametric curves and I don't wanna deal with that shit
-//                    break;
-//                case "l":
-//                    Also free form geometry specification (at least I think it is).
-//                    break;
+//                vp: These specify non polygon parametric curves and I don't wanna deal with that shit
+//                l:  Also free form geometry specification (at least I think it is).
+                in.nextLine();
             }
         }
 
+        // a corner's index packed with whether it's chunk local, so it can ride along the fan
+        private static final long LOCAL = 1L << 32;
 
-        Vec4[] verts = new Vec4[3];
-        int idx = 0;
+        private void parseFace(TextScanner in) throws IOException {
+            long v0 = 0, vt0 = 0, v1 = 0, vt1 = 0;
+            int corners = 0;
+            while (!in.atLineEnd()) {
+                // v, v/vt, v//vn or v/vt/vn, normals get skipped
+                int at = in.pos;
+                long v = resolve(in, in.parseInt(), vertexCount, at);
+                long vt = NO_UV;
+                if (in.peek() == '/') {
+                    ++in.pos;
+                    if (in.peek() != '/') {
+                        at = in.pos;
+                        vt = resolve(in, in.parseInt(), uvCount, at);
+                    }
+                    if (in.peek() == '/') {
+                        ++in.pos;
+                        in.parseInt();
+                    }
+                }
+
+                if (corners == 0) {
+                    v0 = v;
+                    vt0 = vt;
+                } else {
+                    if (corners >= 2) {
+                        addTri(v0, vt0, v1, vt1, v, vt);
+                    }
+                    v1 = v;
+                    vt1 = vt;
+                }
+                ++corners;
+            }
+        }
+
+        /**
+         * OBJ indices start at 1, negative ones count back from the last one defined (-1 is the newest).
+         */
+        private static long resolve(TextScanner in, int index, int localCount, int at) throws IOException {
+            if (index > 0) {
+                return index - 1;
+            }
+            if (index < 0) {
+                return LOCAL | ((localCount + index) & 0xFFFFFFFFL);
+            }
+            throw in.error("OBJ indices start at 1, got 0", at);
+        }
 
-        for (String line : lines) {
-            String trimmed = line.trim().toLowerCase();
-            if (trimmed.startsWith("vertex")) {
-                String[] parts = trimmed.split("\\s+");
-                float x = Float.parseFloat(parts[1]);
-                float y = Float.parseFloat(parts[2]);
-                float z = Float.parseFloat(parts[3]);
-                verts[idx++] = new Vec4(x, y, z, 1f);
+        private void addTri(long a, long aUV, long b, long bUV, long c, long cUV) {
+            if (triCount * 3 + 3 > corners.length) {
+                corners = Arrays.copyOf(corners, corners.length * 2);
+                uvCorners = Arrays.copyOf(uvCorners, uvCorners.length * 2);
+            }
+            int slot = triCount * 3;
+            setCorner(slot, a, aUV);
+            setCorner(slot + 1, b, bUV);
+            setCorner(slot + 2, c, cUV);
+            ++triCount;
+        }
 
-                if (idx == 3) {
-                    tris.add(new Tri(verts[0], verts[1], verts[2]));
-                    idx = 0;
+        private void setCorner(int slot, long v, long vt) {
+            corners[slot] = (int) v;
+            uvCorners[slot] = (int) vt;
+            if ((v & LOCAL) != 0) {
+                if (localCornerCount == localCorners.length) {
+                    localCorners = Arrays.copyOf(localCorners, Math.max(256, localCorners.length * 2));
                 }
+                localCorners[localCornerCount++] = slot;
             }
+            if (vt != NO_UV && (vt & LOCAL) != 0) {
+                if (localUVCornerCount == localUVCorners.length) {
+                    localUVCorners = Arrays.copyOf(localUVCorners, Math.max(256, localUVCorners.length * 2));
+                }
+                localUVCorners[localUVCornerCount++] = slot;
+            }
+        }
+    }
+
+    /**
+     * Lays the chunks out one after the other: all OBJ vertices, then the STL style ones. Tris go in the same
+     * order, so the mesh comes out exactly like a one chunk parse would make it.
+     */
+    private static Mesh merge(Chunk[] chunks) throws IOException {
+        int vertexCount = 0, uvCount = 0, triCount = 0, stlCount = 0;
+        for (Chunk chunk : chunks) {
+            chunk.vertexOffset = vertexCount;
+            chunk.uvOffset = uvCount;
+            chunk.triOffset = triCount;
+            vertexCount += chunk.vertexCount;
+            uvCount += chunk.uvCount;
+            triCount += chunk.triCount;
+        }
+        for (Chunk chunk : chunks) {
+            chunk.stlOffset = vertexCount + stlCount;
+            stlCount += chunk.stlCount;
+        }
+        int stlTris = stlCount / 3;
+
+        float[] positions = new float[(vertexCount + stlTris * 3) * 3];
+        float[] uvTable = new float[uvCount * 2];
+        for (Chunk chunk : chunks) {
+            System.arraycopy(chunk.positions, 0, positions, chunk.vertexOffset * 3, chunk.vertexCount * 3);
+            System.arraycopy(chunk.uvTable, 0, uvTable, chunk.uvOffset * 2, chunk.uvCount * 2);
+            // the last few of these go unused if the count isn't a multiple of 3
+            int stlUsed = Math.max(0, Math.min(chunk.stlCount, stlTris * 3 - (chunk.stlOffset - vertexCount)));
+            System.arraycopy(chunk.stlPositions, 0, positions, chunk.stlOffset * 3, stlUsed * 3);
+        }
+
+        int[] indices = new int[(triCount + stlTris) * 3];
+        // if no face ever came through (only STL style tris) the mesh doesn't get UVs, same as MeshBuilder
+        float[] uvs = triCount > 0 ? new float[(triCount + stlTris) * 6] : null;
+
+        // faces only get to index v lines, the STL style vertices after them are for their own tris
+        Resolve resolve = new Resolve(chunks, 0, chunks.length, indices, uvs, uvTable, vertexCount, uvCount);
+        try {
+            if (chunks.length == 1) {
+                resolve.compute();
+            } else {
+                ForkJoinPool.commonPool().invoke(resolve);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        for (int i = 0; i < stlTris * 3; ++i) {
+            indices[triCount * 3 + i] = vertexCount + i;
         }
 
-        return new Mesh(tris.toArray(new Tri[0]), null);
+        return new Mesh(positions, indices, uvs, null);
+    }
+
+    /**
+     * Second parallel pass: turns each chunk's corners into global vertex indices and UV values, straight into
+     * the merged arrays.
+     */
+    @SuppressWarnings("serial")  // same as ParseChunks
+    private static class Resolve extends RecursiveAction {
+        private final Chunk[] chunks;
+        private final int from, to;
+        private final int[] indices;
+        private final float[] uvs;
+        private final float[] uvTable;
+        private final int vertexCount, uvCount;
+
+        Resolve(Chunk[] chunks, int from, int to, int[] indices, float[] uvs, float[] uvTable, int vertexCount, int uvCount) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.indices = indices;
+            this.uvs = uvs;
+            this.uvTable = uvTable;
+            this.vertexCount = vertexCount;
+            this.uvCount = uvCount;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Resolve(chunks, from, mid, indices, uvs, uvTable, vertexCount, uvCount),
+                        new Resolve(chunks, mid, to, indices, uvs, uvTable, vertexCount, uvCount));
+                return;
+            }
+
+            Chunk chunk = chunks[from];
+            for (int i = 0; i < chunk.localCornerCount; ++i) {
+                chunk.corners[chunk.localCorners[i]] += chunk.vertexOffset;
+            }
+            for (int i = 0; i < chunk.localUVCornerCount; ++i) {
+                chunk.uvCorners[chunk.localUVCorners[i]] += chunk.uvOffset;
+            }
+
+            int corners = chunk.triCount * 3;
+            int out = chunk.triOffset * 3;
+            for (int i = 0; i < corners; ++i) {
+                int v = chunk.corners[i];
+                if (v < 0 || v >= vertexCount) {
+                    throw new UncheckedIOException(new IOException(
+                            "face uses vertex " + (v + 1) + " but there are only " + vertexCount));
+                }
+                indices[out + i] = v;
+
+                // missing vt samples (0, 0), same as DUMMY_UV used to
+                int vt = chunk.uvCorners[i];
+                float u = 0f, w = 0f;
+                if (vt != NO_UV) {
+                    if (vt < 0 || vt >= uvCount) {
+                        throw new UncheckedIOException(new IOException(
+                                "face uses vt " + (vt + 1) + " but there are only " + uvCount));
+                    }
+                    u = uvTable[vt * 2];
+                    w = uvTable[vt * 2 + 1];
+                }
+                uvs[(out + i) * 2] = u;
+                uvs[(out + i) * 2 + 1] = w;
+            }
+        }
     }
 }
@@ -1,77 +1,124 @@
 package loaders;
 
-import math.Vec4;
 import world.Mesh;
-import world.Tri;
-
-import java.io.*;
-import java.nio.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.ArrayList;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * STL stores every tri with its own copy of its three corners, so a closed mesh has each position ~6 times.
+ * Both flavours get welded back into an indexed mesh on the way in (MeshBuilder.weldVertex), which is a lot
+ * less memory and lets the vertex stage transform every vertex once.
+ * The file is mapped and read in place either way.
+ */
 public class STLLoader {
+    private static final int BINARY_HEADER_BYTES = 84;
+    // normal, 3 corners, attribute byte count
+    private static final int BINARY_TRI_BYTES = 50;
 
     public static Mesh load(String filename) throws IOException {
-        File file = new File(filename);
-        byte[] allBytes = Files.readAllBytes(file.toPath());
-
-        String header = new String(allBytes, 0, Math.min(256, allBytes.length), StandardCharsets.UTF_8);
-        if (header.startsWith("solid ")) {
-            return loadAscii(header, allBytes);
-        } else {
-            return loadBinary(allBytes);
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(filename + " is over 2GB, which is more than one mapping holds");
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
         }
-    }
 
-    private static Mesh loadBinary(byte[] data) throws IOException {
-        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        // Plenty of exporters start binary files with "solid" too, so the size is the real tell. Some pad or
+        // truncate though, and then the header's next best: binary if it doesn't say "solid", or if it does but
+        // there's no ASCII in it.
+        if (data.limit() >= BINARY_HEADER_BYTES && data.limit() == binarySize(data)) {
+            return loadBinary(filename, data);
+        }
+        if (!startsWithSolid(data)) {
+            return loadBinary(filename, data);
+        }
+        Mesh mesh = loadAscii(data);
+        if (mesh != null) {
+            return mesh;
+        }
+        if (data.limit() >= BINARY_HEADER_BYTES) {
+            return loadBinary(filename, data);
+        }
+        throw new IOException(filename + " starts like ASCII STL but has no facets in it");
+    }
 
-        buf.position(80);
-        int triangleCount = buf.getInt();
+    private static long binarySize(ByteBuffer data) {
+        return BINARY_HEADER_BYTES + (long) BINARY_TRI_BYTES * Integer.toUnsignedLong(data.getInt(80));
+    }
 
-        ArrayList<Tri> tris = new ArrayList<>(triangleCount);
+    private static boolean startsWithSolid(ByteBuffer data) {
+        TextScanner in = new TextScanner(data, 0, data.limit());
+        in.skipSpaces();
+        return in.lookingAt("solid");
+    }
 
-        for (int i = 0; i < triangleCount; i++) {
-            buf.getFloat(); buf.getFloat(); buf.getFloat();
+    private static Mesh loadBinary(String filename, ByteBuffer data) throws IOException {
+        if (data.limit() < BINARY_HEADER_BYTES) {
+            throw new IOException(filename + " is " + data.limit()
+                    + " bytes, too small for binary STL and not ASCII STL");
+        }
+        // extra bytes after the tris are ignored, too few means it got cut off
+        if (data.limit() < binarySize(data)) {
+            throw new IOException(filename + " says it has " + Integer.toUnsignedLong(data.getInt(80))
+                    + " tris but is only " + data.limit() + " bytes, that's " + binarySize(data) + " in binary STL");
+        }
+        int triangleCount = data.getInt(80);
+        if (triangleCount == 0) {
+            throw new IOException(filename + " is binary STL with no tris in it");
+        }
 
-            Vec4 a = new Vec4(buf.getFloat(), buf.getFloat(), buf.getFloat(), 1f);
-            Vec4 b = new Vec4(buf.getFloat(), buf.getFloat(), buf.getFloat(), 1f);
-            Vec4 c = new Vec4(buf.getFloat(), buf.getFloat(), buf.getFloat(), 1f);
+        // closed meshes have about half as many vertices as tris
+        MeshBuilder builder = new MeshBuilder(triangleCount / 2, triangleCount);
 
-            tris.add(new Tri(a, b, c));
+        int o = BINARY_HEADER_BYTES;
+        for (int i = 0; i < triangleCount; i++) {
+            // the stored normal is skipped, Mesh works out its own
+            int a = builder.weldVertex(data.getFloat(o + 12), data.getFloat(o + 16), data.getFloat(o + 20));
+            int b = builder.weldVertex(data.getFloat(o + 24), data.getFloat(o + 28), data.getFloat(o + 32));
+            int c = builder.weldVertex(data.getFloat(o + 36), data.getFloat(o + 40), data.getFloat(o + 44));
 
-            buf.getShort();
+            builder.addTri(a, b, c);
+            o += BINARY_TRI_BYTES;
         }
 
-        return new Mesh(tris.toArray(new Tri[0]), null);
+        return builder.build(null);
     }
 
-    private static Mesh loadAscii(String headerLine, byte[] data) throws IOException {
-        String content = new String(data, StandardCharsets.UTF_8);
-        String[] lines = content.split("\n");
-
-        ArrayList<Tri> tris = new ArrayList<>();
+    /**
+     * @return null if there wasn't a single facet, so load can try it as binary
+     */
+    private static Mesh loadAscii(ByteBuffer data) throws IOException {
+        TextScanner in = new TextScanner(data, 0, data.limit());
+        MeshBuilder builder = new MeshBuilder();
 
-        Vec4[] verts = new Vec4[3];
+        int[] verts = new int[3];
         int idx = 0;
+        int tris = 0;
 
-        for (String line : lines) {
-            String trimmed = line.trim().toLowerCase();
-            if (trimmed.startsWith("vertex")) {
-                String[] parts = trimmed.split("\\s+");
-                float x = Float.parseFloat(parts[1]);
-                float y = Float.parseFloat(parts[2]);
-                float z = Float.parseFloat(parts[3]);
-                verts[idx++] = new Vec4(x, y, z, 1f);
+        while (in.hasMore()) {
+            in.skipSpaces();
+            if (in.lookingAt("vertex")) {
+                in.pos += "vertex".length();
+                float x = in.parseFloat();
+                float y = in.parseFloat();
+                float z = in.parseFloat();
+                verts[idx++] = builder.weldVertex(x, y, z);
 
                 if (idx == 3) {
-                    tris.add(new Tri(verts[0], verts[1], verts[2]));
+                    builder.addTri(verts[0], verts[1], verts[2]);
                     idx = 0;
+                    ++tris;
                 }
             }
+            in.nextLine();
         }
 
-        return new Mesh(tris.toArray(new Tri[0]), null);
+        return tris == 0 ? null : builder.build(null);
     }
 }
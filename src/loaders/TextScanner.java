@@ -0,0 +1,216 @@
+package loaders;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Walks ASCII text (OBJ, STL) byte by byte straight out of a ByteBuffer, usually a mapped file, parsing numbers
+ * in place. Nothing allocates unless a number is weird enough for the slow path or something's broken.
+ * Spaces, tabs and '\r' all count as spaces, lines end at '\n'.
+ */
+class TextScanner {
+    // every power of 10 a double holds exactly, so the fast float path's one multiply or divide rounds once
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final int MAX_DIGITS = 18;
+    private static final long FLOAT_DROPPED_BITS = (1L << 29) - 1;
+    private static final long FLOAT_HALFWAY = 1L << 28;
+
+    private final ByteBuffer data;
+    public int pos;
+    public final int end;
+
+    public TextScanner(ByteBuffer data, int start, int end) {
+        this.data = data;
+        this.pos = start;
+        this.end = end;
+    }
+
+    public boolean hasMore() {
+        return pos < end;
+    }
+
+    /**
+     * @return the byte under the cursor, or '\n' past the end so the end of the text looks like the end of a line
+     */
+    public byte peek() {
+        return pos < end ? data.get(pos) : (byte) '\n';
+    }
+
+    public byte peek(int ahead) {
+        return pos + ahead < end ? data.get(pos + ahead) : (byte) '\n';
+    }
+
+    public static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    public void skipSpaces() {
+        while (pos < end && isSpace(data.get(pos))) {
+            ++pos;
+        }
+    }
+
+    /**
+     * True at a newline, the end of the text or a comment, after skipping spaces.
+     */
+    public boolean atLineEnd() {
+        skipSpaces();
+        byte b = peek();
+        return b == '\n' || b == '#';
+    }
+
+    /**
+     * Moves to the start of the next line.
+     */
+    public void nextLine() {
+        while (pos < end && data.get(pos) != '\n') {
+            ++pos;
+        }
+        ++pos;
+    }
+
+    /**
+     * True if the word is next (any case) followed by a space or the end of the line. Doesn't move.
+     */
+    public boolean lookingAt(String word) {
+        for (int i = 0; i < word.length(); ++i) {
+            byte b = peek(i);
+            if (b == '\n' || Character.toLowerCase((char) b) != word.charAt(i)) {
+                return false;
+            }
+        }
+        byte after = peek(word.length());
+        return isSpace(after) || after == '\n';
+    }
+
+    public int parseInt() throws IOException {
+        skipSpaces();
+        int start = pos;
+        boolean negative = false;
+        if (peek() == '-' || peek() == '+') {
+            negative = peek() == '-';
+            ++pos;
+        }
+        int digitsStart = pos;
+        long value = 0;
+        while (pos < end) {
+            int d = data.get(pos) - '0';
+            if (d < 0 || d > 9) {
+                break;
+            }
+            value = value * 10 + d;
+            if (value > Integer.MAX_VALUE) {
+                throw error("number too big", start);
+            }
+            ++pos;
+        }
+        if (pos == digitsStart) {
+            throw error("expected a number", start);
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * Handles the usual [-+]digits[.digits][e[-+]digits]. Up to 15 or so digits and a small exponent
+     * (so, every float anyone exports) get parsed with one double multiply or divide and a round to float.
+     * That's two roundings, which only comes out different from rounding once when the double lands exactly
+     * halfway between two floats, so those go through Float.parseFloat along with anything else odd.
+     */
+    public float parseFloat() throws IOException {
+        skipSpaces();
+        int start = pos;
+        boolean negative = false;
+        if (peek() == '-' || peek() == '+') {
+            negative = peek() == '-';
+            ++pos;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int p = pos;
+        int d;
+        while (p < end && (d = data.get(p) - '0') >= 0 && d <= 9) {
+            mantissa = mantissa * 10 + d;
+            ++p;
+        }
+        int digits = p - pos;
+        if (p < end && data.get(p) == '.') {
+            int fractionStart = ++p;
+            while (p < end && (d = data.get(p) - '0') >= 0 && d <= 9) {
+                mantissa = mantissa * 10 + d;
+                ++p;
+            }
+            digits += p - fractionStart;
+            exponent = fractionStart - p;
+        }
+        pos = p;
+        if (digits > 0 && (peek() == 'e' || peek() == 'E')) {
+            ++pos;
+            boolean negativeExp = false;
+            if (peek() == '-' || peek() == '+') {
+                negativeExp = peek() == '-';
+                ++pos;
+            }
+            int exp = 0;
+            int expStart = pos;
+            while ((d = peek() - '0') >= 0 && d <= 9) {
+                // clamped, anything this big is the slow path's problem anyway
+                exp = Math.min(exp * 10 + d, 10000);
+                ++pos;
+            }
+            if (pos == expStart) {
+                return slowFloat(start);
+            }
+            exponent += negativeExp ? -exp : exp;
+        }
+
+        byte after = peek();
+        if (digits == 0 || digits > MAX_DIGITS || !(isSpace(after) || after == '\n' || after == '/')
+                || mantissa > MAX_EXACT_MANTISSA || exponent < -22 || exponent > 22) {
+            return slowFloat(start);
+        }
+        double value = exponent >= 0 ? mantissa * POW10[exponent] : mantissa / POW10[-exponent];
+        // The 29 bits of double mantissa a float drops being exactly 100...0 is the halfway case. Everything
+        // the fast path makes is a normal float, so it's always those 29.
+        if ((Double.doubleToRawLongBits(value) & FLOAT_DROPPED_BITS) == FLOAT_HALFWAY) {
+            return slowFloat(start);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    private float slowFloat(int start) throws IOException {
+        pos = start;
+        while (pos < end && !isSpace(data.get(pos)) && data.get(pos) != '\n') {
+            ++pos;
+        }
+        byte[] token = new byte[pos - start];
+        data.get(start, token);
+        try {
+            return Float.parseFloat(new String(token, StandardCharsets.ISO_8859_1));
+        } catch (NumberFormatException e) {
+            throw error("bad number", start);
+        }
+    }
+
+    /**
+     * Only ever called when something already went wrong, so counting lines from the top is fine.
+     */
+    public IOException error(String message, int at) {
+        int line = 1;
+        for (int i = 0; i < at && i < data.limit(); ++i) {
+            if (data.get(i) == '\n') ++line;
+        }
+        int lineEnd = at;
+        while (lineEnd < data.limit() && lineEnd - at < 40 && data.get(lineEnd) != '\n') {
+            ++lineEnd;
+        }
+        byte[] snippet = new byte[lineEnd - at];
+        data.get(at, snippet);
+        return new IOException(message + " on line " + line + " at \"" + new String(snippet, StandardCharsets.ISO_8859_1).trim() + "\"");
+    }
+}
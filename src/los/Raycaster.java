@@ -3,8 +3,9 @@ package los;
 import math.Matrix4;
 import math.Vec4;
 import world.Mesh;
-import world.Tri;
 
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.List;
 
 public final class Raycaster {
@@ -43,6 +44,16 @@ public final class Raycaster {
     private static final Vec4 s      = new Vec4();
     private static final Vec4 q      = new Vec4();
     private static final Vec4 temp   = new Vec4(); // for hit point calc
+    private static final Vec4 local  = new Vec4(); // model space vertex on its way to world space
+
+    private static void toWorld(FloatBuffer positions, int vertex, Matrix4 M, Vec4 out) {
+        int p = vertex * 3;
+        local.x = positions.get(p);
+        local.y = positions.get(p + 1);
+        local.z = positions.get(p + 2);
+        local.w = 1f;
+        local.transform(M, out);
+    }
 
     /**
      * Performs line-of-sight check.
@@ -70,11 +81,13 @@ public final class Raycaster {
             if (mesh == null) continue;
             Matrix4 M = mesh.getModelMatrix();
 
-            for (Tri tri : mesh.tris) {
+            FloatBuffer positions = mesh.positions;
+            IntBuffer indices = mesh.indices;
+            for (int i = 0; i < indices.limit(); i += 3) {
                 // Transform vertices to world space
-                tri.a.transform(M, v0);
-                tri.b.transform(M, v1);
-                tri.c.transform(M, v2);
+                toWorld(positions, indices.get(i), M, v0);
+                toWorld(positions, indices.get(i + 1), M, v1);
+                toWorld(positions, indices.get(i + 2), M, v2);
 
                 // Edges from v0
                 v1.sub(v0, e1);
@@ -14,6 +14,8 @@ public class Camera {
 
     private final Matrix4 viewMatrix = new Matrix4();
     private final Matrix4 perspectiveMatrix = new Matrix4();
+    private final Matrix4 viewProjectionMatrix = new Matrix4();
+    private final Frustum frustum = new Frustum();
 
     public Camera(int nX, int nY) {
         this(nX, nY, new Vec4(0, 0, 0, 1), new Quaternion(1, 0, 0, 0));
@@ -35,6 +37,22 @@ public class Camera {
         return Matrix4.writeView(transform, rotation, viewMatrix);
     }
 
+    /**
+     * World space frustum at the camera's current position/rotation. Rebuilt every call, it's cheap.
+     */
+    public Frustum getFrustum() {
+        frustum.update(getViewProjectionMatrix());
+        return frustum;
+    }
+
+    /**
+     * Perspective * view at the camera's current position/rotation. Rebuilt every call, and it's the same
+     * instance every time, so copy it if you need it to stick around.
+     */
+    public Matrix4 getViewProjectionMatrix() {
+        return perspectiveMatrix.mul(getViewMatrix(), viewProjectionMatrix);
+    }
+
     public void moveTo(Vec4 vec) {
         this.transform.x = vec.x;
         this.transform.y = vec.y;
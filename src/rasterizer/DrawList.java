@@ -0,0 +1,98 @@
+package rasterizer;
+
+import world.Mesh;
+
+import java.util.Arrays;
+
+/**
+ * Per-frame command list of meshes. The renderer chews through the whole list in one vertex pass and one raster
+ * pass, so the number of barriers per frame doesn't depend on how many meshes there are.
+ * Meshes are numbered back to back: the vertices of mesh i live at [getVertexOffset(i), getVertexOffset(i + 1))
+ * in the frame's vertex cache, same deal for tris.
+ * Reuse one of these across frames, clear() doesn't free anything.
+ */
+public class DrawList {
+    private Mesh[] meshes = new Mesh[16];
+    private int[] vertexOffsets = new int[17];
+    private int[] triOffsets = new int[17];
+    // optional per mesh draw order of its tris, null means 0, 1, 2, ... (see Mesh.getDepthOrder)
+    private int[][] triOrders = new int[16][];
+    private int count;
+
+    public void clear() {
+        count = 0;
+    }
+
+    public void add(Mesh mesh) {
+        add(mesh, null);
+    }
+
+    /**
+     * @param triOrder order to draw the mesh's tris in, a permutation of [0, mesh.triCount). Only changes
+     *                 which tri goes first, never what ends up on screen (bar exact depth ties).
+     */
+    public void add(Mesh mesh, int[] triOrder) {
+        if (count == meshes.length) {
+            Mesh[] grownMeshes = new Mesh[count * 2];
+            int[] grownVertexOffsets = new int[count * 2 + 1];
+            int[] grownTriOffsets = new int[count * 2 + 1];
+            System.arraycopy(meshes, 0, grownMeshes, 0, count);
+            System.arraycopy(vertexOffsets, 0, grownVertexOffsets, 0, count + 1);
+            System.arraycopy(triOffsets, 0, grownTriOffsets, 0, count + 1);
+            triOrders = Arrays.copyOf(triOrders, count * 2);
+            meshes = grownMeshes;
+            vertexOffsets = grownVertexOffsets;
+            triOffsets = grownTriOffsets;
+        }
+
+        // Model matrices are rebuilt lazily. Do it here on the submitting thread so the workers never race on it.
+        mesh.getModelMatrix();
+
+        // Offsets are ints, better to find out here than from a negative one halfway through a frame
+        int vertexEnd, triEnd;
+        try {
+            vertexEnd = Math.addExact(vertexOffsets[count], mesh.vertexCount);
+            triEnd = Math.addExact(triOffsets[count], mesh.triCount);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("draw list is full, " + vertexOffsets[count] + " vertices and "
+                    + triOffsets[count] + " tris already in it", e);
+        }
+
+        meshes[count] = mesh;
+        triOrders[count] = triOrder;
+        vertexOffsets[count + 1] = vertexEnd;
+        triOffsets[count + 1] = triEnd;
+        ++count;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Mesh get(int i) {
+        return meshes[i];
+    }
+
+    /**
+     * @return the order to draw mesh i's tris in, or null for index order
+     */
+    public int[] getTriOrder(int i) {
+        return triOrders[i];
+    }
+
+    public int getVertexOffset(int i) {
+        return vertexOffsets[i];
+    }
+
+    public int getTriOffset(int i) {
+        return triOffsets[i];
+    }
+
+    public int getTotalVertices() {
+        return vertexOffsets[count];
+    }
+
+    public int getTotalTris() {
+        return triOffsets[count];
+    }
+}
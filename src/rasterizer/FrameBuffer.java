@@ -0,0 +1,130 @@
+package rasterizer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A render target: packed ARGB color + invZ depth, row major with row 0 at the top of the image.
+ * Screen space y points up (like the rest of the pipeline), getPixelLocation does the flip.
+ * The depth buffer comes with a HierarchicalZ that the rasterizer keeps in sync, and a tri id per pixel for
+ * visibility buffer rendering.
+ * Nothing in here knows about Swing, so this works fine on a headless box. TotallyLegit is just one
+ * way of getting these pixels onto a screen.
+ */
+public class FrameBuffer {
+    public final int[] pixels;
+    public final float[] depth;
+    public final int width, height;
+    public final HierarchicalZ hiZ;
+    // Visibility buffer: which tri won each pixel since the last resolve (see PixelShader.setVisibilityBuffer).
+    // The resolve empties it again, so clear() leaves it alone.
+    public final int[] triIds;
+    public static final int NO_TRI = -1;
+    public int clearColor = argb(255, 255, 255, 255);
+
+    public FrameBuffer(int width, int height) {
+        this(new int[width * height], width, height);
+    }
+
+    /**
+     * Wraps an existing color array (e.g. the backing array of a BufferedImage) so that rendering
+     * writes straight into it.
+     */
+    public FrameBuffer(int[] pixels, int width, int height) {
+        if (pixels.length != width * height) {
+            throw new IllegalArgumentException("pixel array is " + pixels.length + " long, expected " + width * height);
+        }
+        this.pixels = pixels;
+        this.depth = new float[pixels.length];
+        this.width = width;
+        this.height = height;
+        this.hiZ = new HierarchicalZ(width, height);
+        this.triIds = new int[pixels.length];
+        Arrays.fill(triIds, NO_TRI);
+        clear();
+    }
+
+    public void setRGB(int x, int y, int argb) {
+        pixels[getPixelLocation(x, y)] = argb;
+    }
+
+    /**
+     * For faster setRGB where you know how pixels is structured. Use with care.
+     */
+    public void setRGBFast(int idx, int argb) {
+        pixels[idx] = argb;
+    }
+
+    public void setDepth(int x, int y, float z) {
+        depth[getPixelLocation(x, y)] = z;
+    }
+
+    /**
+     * For faster setDepth where you know how depth is structured. Use with care.
+     */
+    public void setDepthFast(int idx, float z) {
+        depth[idx] = z;
+    }
+
+    public float getDepth(int x, int y) {
+        return depth[getPixelLocation(x, y)];
+    }
+
+    public final void clear() {
+        Arrays.fill(depth, Integer.MIN_VALUE);
+        hiZ.clear();
+        Arrays.fill(pixels, clearColor);
+    }
+
+    public int getPixelLocation(int x, int y) {
+        return (height - y - 1) * width + x;
+    }
+
+    public void drawLine(int x0, int y0, int x1, int y1, int color) {
+        int dx = Math.abs(x1 - x0);
+        int dy = Math.abs(y1 - y0);
+        int sx = x0 < x1 ? 1 : -1;
+        int sy = y0 < y1 ? 1 : -1;
+        int err = dx - dy;
+
+        while (true) {
+            if (x0 >= 0 && x0 < width && y0 >= 0 && y0 < height) {
+                setRGB(x0, y0, color);
+            }
+
+            if (x0 == x1 && y0 == y1) break;
+
+            int e2 = err * 2;
+            if (e2 > -dy) {
+                err -= dy;
+                x0 += sx;
+            }
+            if (e2 < dx) {
+                err += dx;
+                y0 += sy;
+            }
+        }
+    }
+
+    /**
+     * Copies the color buffer into a new image. Allocates, so don't call it every frame.
+     */
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] dst = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, dst, 0, pixels.length);
+        return image;
+    }
+
+    public void writePNG(String path) throws IOException {
+        ImageIO.write(toImage(), "png", new File(path));
+    }
+
+    public static int argb(int a, int r, int g, int b) {
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,80 @@
+package rasterizer;
+
+import math.Matrix4;
+import world.Mesh;
+
+/**
+ * World space view frustum, pulled straight out of the view-projection matrix (Gribb/Hartmann).
+ * The projection is infinite so there's no far plane: just left, right, bottom, top and near.
+ * Near is w >= VertexShader.NEAR_PLANE, same as what the vertex stage clips against, so anything this keeps
+ * can still produce pixels.
+ * Planes are stored as a, b, c, d with (a, b, c) normalized and pointing inwards.
+ */
+public class Frustum {
+    private static final int PLANES = 5;
+    private final float[] planes = new float[PLANES * 4];
+
+    public void update(Matrix4 vp) {
+        // left: w + x >= 0
+        setPlane(0, vp.m30 + vp.m00, vp.m31 + vp.m01, vp.m32 + vp.m02, vp.m33 + vp.m03);
+        // right: w - x >= 0
+        setPlane(1, vp.m30 - vp.m00, vp.m31 - vp.m01, vp.m32 - vp.m02, vp.m33 - vp.m03);
+        // bottom: w + y >= 0
+        setPlane(2, vp.m30 + vp.m10, vp.m31 + vp.m11, vp.m32 + vp.m12, vp.m33 + vp.m13);
+        // top: w - y >= 0
+        setPlane(3, vp.m30 - vp.m10, vp.m31 - vp.m11, vp.m32 - vp.m12, vp.m33 - vp.m13);
+        // near: w - NEAR_PLANE >= 0
+        setPlane(4, vp.m30, vp.m31, vp.m32, vp.m33 - VertexShader.NEAR_PLANE);
+    }
+
+    private void setPlane(int i, float a, float b, float c, float d) {
+        float invLen = 1.0f / (float) Math.sqrt(a * a + b * b + c * c);
+        int o = i * 4;
+        planes[o] = a * invLen;
+        planes[o + 1] = b * invLen;
+        planes[o + 2] = c * invLen;
+        planes[o + 3] = d * invLen;
+    }
+
+    /**
+     * Conservative visibility test of a mesh at its current transform. Tries the bounding sphere first, and
+     * only if that straddles a plane falls back to the (transformed) bounding box, which is tighter.
+     * @return false only if the mesh is definitely entirely outside
+     */
+    public boolean intersects(Mesh mesh) {
+        Matrix4 m = mesh.getModelMatrix();
+
+        float lx = mesh.boundsCenter.x, ly = mesh.boundsCenter.y, lz = mesh.boundsCenter.z;
+        float cx = m.m00 * lx + m.m01 * ly + m.m02 * lz + m.m03;
+        float cy = m.m10 * lx + m.m11 * ly + m.m12 * lz + m.m13;
+        float cz = m.m20 * lx + m.m21 * ly + m.m22 * lz + m.m23;
+
+        float ex = (mesh.boundsMax.x - mesh.boundsMin.x) * 0.5f;
+        float ey = (mesh.boundsMax.y - mesh.boundsMin.y) * 0.5f;
+        float ez = (mesh.boundsMax.z - mesh.boundsMin.z) * 0.5f;
+        float r = mesh.boundsRadius;
+
+        for (int i = 0; i < PLANES; ++i) {
+            int o = i * 4;
+            float a = planes[o], b = planes[o + 1], c = planes[o + 2];
+            float dist = a * cx + b * cy + c * cz + planes[o + 3];
+
+            if (dist < -r) {
+                return false;
+            }
+            if (dist >= r) {
+                continue;
+            }
+
+            // Box axes are the model matrix columns. Project the half extents onto the plane normal.
+            float extent = ex * Math.abs(a * m.m00 + b * m.m10 + c * m.m20)
+                    + ey * Math.abs(a * m.m01 + b * m.m11 + c * m.m21)
+                    + ez * Math.abs(a * m.m02 + b * m.m12 + c * m.m22);
+            if (dist < -extent) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
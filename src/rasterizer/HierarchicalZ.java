@@ -0,0 +1,89 @@
+package rasterizer;
+
+import java.util.Arrays;
+
+/**
+ * Coarse depth levels on top of a FrameBuffer's depth buffer, so the raster stage can throw away whole
+ * triangles (per 64x64 tile) or 8x8 blocks that can't possibly pass the depth test.
+ * Depth is invZ, bigger is nearer, so what matters per region is the farthest (smallest) stored value:
+ * anything whose nearest invZ is <= that is hidden everywhere in the region.
+ * Values in here are only ever <= the real minimum, so they never reject something visible. They only go up
+ * when a triangle covers a whole block (see raiseBlock), and clear() resets everything along with the depth buffer.
+ * If you write depth behind the rasterizer's back (setDepth with something farther), call clear() or this lies.
+ *
+ * Threading: a block is only ever raised by the worker that owns all of it. In tiles mode that's whoever has the
+ * tile, in strips mode blocks straddling two strips are never raised at all.
+ */
+public final class HierarchicalZ {
+    public static final int BLOCK_SHIFT = 3;
+    public static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCKS_PER_TILE_SHIFT = TileBinner.TILE_SHIFT - BLOCK_SHIFT;
+
+    private final int blocksX, blocksY;
+    private final int tilesX, tilesY;
+
+    private final float[] blockFar;
+    private final float[] tileFar;
+    // tile values are rebuilt from their blocks the next time someone asks, not every time a block moves
+    private final boolean[] tileDirty;
+
+    public HierarchicalZ(int width, int height) {
+        blocksX = (width + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+        blocksY = (height + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+        tilesX = (width + TileBinner.TILE_SIZE - 1) >> TileBinner.TILE_SHIFT;
+        tilesY = (height + TileBinner.TILE_SIZE - 1) >> TileBinner.TILE_SHIFT;
+
+        blockFar = new float[blocksX * blocksY];
+        tileFar = new float[tilesX * tilesY];
+        tileDirty = new boolean[tilesX * tilesY];
+        clear();
+    }
+
+    public void clear() {
+        Arrays.fill(blockFar, Integer.MIN_VALUE);
+        Arrays.fill(tileFar, Integer.MIN_VALUE);
+        Arrays.fill(tileDirty, false);
+    }
+
+    /**
+     * @param bx block column, i.e. pixel x >> BLOCK_SHIFT
+     * @param by block row, y up like everything else
+     */
+    public float getBlockFar(int bx, int by) {
+        return blockFar[by * blocksX + bx];
+    }
+
+    /**
+     * A triangle just got drawn over every pixel of the block, and its invZ is at least nearestFar everywhere in it.
+     * Every pixel now holds max(old, triangle) >= max(old far, nearestFar), so that's the block's new far value.
+     */
+    public void raiseBlock(int bx, int by, float nearestFar) {
+        int i = by * blocksX + bx;
+        if (nearestFar > blockFar[i]) {
+            blockFar[i] = nearestFar;
+            tileDirty[(by >> BLOCKS_PER_TILE_SHIFT) * tilesX + (bx >> BLOCKS_PER_TILE_SHIFT)] = true;
+        }
+    }
+
+    /**
+     * Farthest depth anywhere in a TileBinner tile.
+     */
+    public float getTileFar(int tile) {
+        if (tileDirty[tile]) {
+            int bx0 = (tile % tilesX) << BLOCKS_PER_TILE_SHIFT;
+            int by0 = (tile / tilesX) << BLOCKS_PER_TILE_SHIFT;
+            int bx1 = Math.min(blocksX, bx0 + (1 << BLOCKS_PER_TILE_SHIFT));
+            int by1 = Math.min(blocksY, by0 + (1 << BLOCKS_PER_TILE_SHIFT));
+
+            float far = Float.POSITIVE_INFINITY;
+            for (int by = by0; by < by1; ++by) {
+                for (int bx = bx0; bx < bx1; ++bx) {
+                    far = Math.min(far, blockFar[by * blocksX + bx]);
+                }
+            }
+            tileFar[tile] = far;
+            tileDirty[tile] = false;
+        }
+        return tileFar[tile];
+    }
+}
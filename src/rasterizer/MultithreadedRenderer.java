@@ -1,51 +1,107 @@
 package rasterizer;
 
+import math.Matrix4;
+import math.Vec4;
 import world.Mesh;
 
+import java.util.Arrays;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MultithreadedRenderer {
+    /**
+     * STRIPS: every worker owns a fixed horizontal strip and scans every triangle.
+     * TILES: triangles get binned into 64x64 tiles and workers pull tiles off a shared queue.
+     */
+    public enum RasterMode { STRIPS, TILES }
+
+    // meshes with fewer tris than this are drawn in index order, sorting them wouldn't buy much
+    public static final int DEPTH_ORDER_MIN_TRIS = 512;
+    // ...and past this the orders (an int per tri per octant, on the heap) cost more than they're worth
+    public static final int DEPTH_ORDER_MAX_TRIS = 1 << 22;
+    // Visible lists get sized up front for at most this many tris per worker, past that they grow as tris
+    // survive. Otherwise a huge (mapped) mesh would get a VertExport per input tri whether it's visible or not.
+    private static final int MAX_PRESIZED_TRIS = 1 << 16;
+
     private final Thread[] workers;
     private final PixelShader[] shaders;
     private final int numThreads;
+    private final FrameBuffer target;
+    private final int X, Y;
 
     private final CyclicBarrier startBarrier;
+    private final CyclicBarrier vertexCacheDone;
     private final CyclicBarrier midDraw;
     private final CyclicBarrier endBarrier;
 
-    private volatile Mesh currentMesh;
+    private volatile DrawList currentDrawList;
     private volatile Camera currentCamera;
-    private volatile boolean loadingCamera = false;
+    private final DrawList singleMesh = new DrawList();
+    private final DrawList culledList = new DrawList();
+    private final DrawList unoccludedList = new DrawList();
+    private final DrawList sortedList = new DrawList();
+    // depth in the high half, draw list index in the low half, so one primitive sort does the job
+    private long[] sortKeys = new long[16];
+    private final OcclusionCuller occlusionCuller;
+    private volatile boolean frustumCulling = true;
+    private volatile boolean occlusionCulling = true;
+    private volatile boolean depthSorting = true;
     private volatile boolean running = true;
+    private volatile RasterMode rasterMode = RasterMode.STRIPS;
+
+    private final TileBinner[] binners;
+    private final AtomicInteger nextTile = new AtomicInteger();
 
     private VertexShader[] vertexShadersPool;
-    private VertexShader.VertExport[] vertExportPool;
-    private int vertExportPoolSize;
-    private static final int INITIAL_POOL_SIZE = 10000;
 
-    public MultithreadedRenderer(int X, int Y) {
-        this(Runtime.getRuntime().availableProcessors(), X, Y);
+    // Every vertex worker compacts the triangles that survive clipping/culling into its own list.
+    // The raster stage only ever walks [0, visibleCounts[t]) of each list.
+    private final VertexShader.VertExport[][] visibleLists;
+    private final int[] visibleCounts;
+    // The bits of every visible tri the raster stage looks at before deciding to draw it, pulled out into flat
+    // arrays parallel to visibleLists: pixel bounds (minX, maxX, minY, maxY, inclusive) at [i * BOUNDS_STRIDE]
+    // and the nearest invZ. Skipping a tri is then a streaming read instead of a cache miss on its VertExport.
+    // That's all that's flat on purpose: a tri that does get drawn reads its edges, planes and slopes once into
+    // locals at setup, so flattening those too would be a lot of churn (SpanKernel, both rasterizers, the
+    // binner all take a VertExport) for a load per field per drawn tri.
+    private final int[][] visibleBounds;
+    private final float[][] visibleNearest;
+    private static final int BOUNDS_STRIDE = 4;
+    private static final int INITIAL_LIST_SIZE = 1024;
+
+    // Post transform vertex cache: clip space x, y, z, w of every unique vertex in the frame's draw list,
+    // laid out mesh after mesh (see DrawList.getVertexOffset)
+    private float[] clipCache = new float[0];
+
+    public MultithreadedRenderer(FrameBuffer target) {
+        this(Runtime.getRuntime().availableProcessors(), target);
     }
 
-    public MultithreadedRenderer(int numThreads, int X, int Y) {
+    public MultithreadedRenderer(int numThreads, FrameBuffer target) {
         this.numThreads = numThreads;
+        this.target = target;
+        this.X = target.width;
+        this.Y = target.height;
+        this.occlusionCuller = new OcclusionCuller(X, Y);
 
-        // Barriers include +1 for main thread
+        // Start and end include +1 for main thread, the main thread only ever waits on those two per frame.
         startBarrier = new CyclicBarrier(numThreads + 1);
-        midDraw = new CyclicBarrier(numThreads + 1);
+        // workers only: triangle assembly can't start until every worker has filled its part of the vertex cache
+        vertexCacheDone = new CyclicBarrier(numThreads);
+        // workers only: raster can't start until every worker has finished assembling and binning
+        midDraw = new CyclicBarrier(numThreads);
         endBarrier = new CyclicBarrier(numThreads + 1);
 
         shaders = new PixelShader[numThreads];
         vertexShadersPool = new VertexShader[numThreads];
         workers = new Thread[numThreads];
+        binners = new TileBinner[numThreads];
 
-        vertExportPool = new VertexShader.VertExport[INITIAL_POOL_SIZE];
-        vertExportPoolSize = vertExportPool.length;
-
-        for (int i = 0; i < vertExportPoolSize; ++i) {
-            vertExportPool[i] = new VertexShader.VertExport();
-        }
+        visibleLists = new VertexShader.VertExport[numThreads][];
+        visibleCounts = new int[numThreads];
+        visibleBounds = new int[numThreads][];
+        visibleNearest = new float[numThreads][];
 
         int rowsPerThread = Y / numThreads;
 
@@ -53,8 +109,13 @@ public class MultithreadedRenderer {
             int yMin = i * rowsPerThread;
             int yMax = (i == numThreads - 1) ? Y : (i + 1) * rowsPerThread;
 
-            shaders[i] = new PixelShader(0, yMin, X, yMax);
+            shaders[i] = new PixelShader(target, 0, yMin, X, yMax);
             vertexShadersPool[i] = new VertexShader();
+            binners[i] = new TileBinner(X, Y);
+            visibleLists[i] = new VertexShader.VertExport[0];
+            visibleBounds[i] = new int[0];
+            visibleNearest[i] = new float[0];
+            ensureListCapacity(i, INITIAL_LIST_SIZE);
 
             final int threadIndex = i;
             workers[i] = new Thread(() -> workerLoop(threadIndex), "RenderWorker-" + i);
@@ -64,6 +125,8 @@ public class MultithreadedRenderer {
 
     private void workerLoop(int threadIndex) {
         PixelShader shader = shaders[threadIndex];
+        TileBinner binner = binners[threadIndex];
+        VertexShader vertexShader = vertexShadersPool[threadIndex];
 
         while (running) {
             try {
@@ -71,40 +134,48 @@ public class MultithreadedRenderer {
 
                 if (!running) break;
 
-                if (loadingCamera) {
-                    vertexShadersPool[threadIndex].loadCamera(currentCamera);
-                } else {
-                    vertexShadersPool[threadIndex].loadModel(currentMesh);
-                    int totalTris = currentMesh.tris.length;
-                    int trisPerThread = totalTris / numThreads;
-                    int startIdx = threadIndex * trisPerThread;
-                    int endIdx;
-
-                    if (threadIndex == numThreads - 1) {
-                        // Last thread gets the base amount PLUS all the leftover remainder
-                        endIdx = totalTris;
-                    } else {
-                        // All other threads get just the base amount
-                        endIdx = (threadIndex + 1) * trisPerThread;
-                    }
+                DrawList drawList = currentDrawList;
+                vertexShader.loadCamera(currentCamera);
 
-                    if (startIdx >= totalTris) {
-                        startIdx = totalTris;
-                        endIdx = totalTris;
-                    }
+                int totalVerts = drawList.getTotalVertices();
+                transformVertices(vertexShader, drawList, sliceStart(totalVerts, threadIndex), sliceEnd(totalVerts, threadIndex));
+                vertexCacheDone.await();
 
-                    for (int i = startIdx; i < endIdx; ++i) {
-                        // write primary output to i; if clipping produces a second triangle
-                        // it'll be written to i + totalTris. Ensure pool is allocated to hold that.
-                        VertexShader.VertExport out2 = (i + totalTris < vertExportPoolSize) ? vertExportPool[i + totalTris] : null;
-                        vertexShadersPool[threadIndex].processTri(currentMesh.tris[i], vertExportPool[i], out2);
-                    }
+                RasterMode mode = rasterMode;
+                if (mode == RasterMode.TILES) {
+                    binner.reset();
+                }
+
+                int totalTris = drawList.getTotalTris();
+                int startIdx = sliceStart(totalTris, threadIndex);
+                int endIdx = sliceEnd(totalTris, threadIndex);
+
+                ensureListCapacity(threadIndex, Math.min(endIdx - startIdx, MAX_PRESIZED_TRIS) + VertexShader.MAX_CLIPPED_TRIS);
+                visibleCounts[threadIndex] = assembleTris(threadIndex, vertexShader, drawList, startIdx, endIdx, mode == RasterMode.TILES);
 
-                    midDraw.await();
+                midDraw.await();
 
-                    // Rasterize entire pool: dead/unused entries have invZ <= 0 and will be skipped in PixelShader
-                    for (int i = 0; i < vertExportPoolSize; ++i) {
-                        shader.drawVerts(vertExportPool[i], currentMesh.texture, currentMesh.backfaceCulling);
+                if (mode == RasterMode.TILES) {
+                    rasterizeTiles(shader);
+                } else {
+                    // tiles mode moves the bounds around, so put our strip back in case the mode just changed
+                    int stripMin = sliceStart(Y, threadIndex), stripMax = sliceEnd(Y, threadIndex);
+                    shader.setBounds(0, stripMin, X, stripMax);
+                    for (int t = 0; t < numThreads; ++t) {
+                        VertexShader.VertExport[] visible = visibleLists[t];
+                        int[] bounds = visibleBounds[t];
+                        int visibleCount = visibleCounts[t];
+                        for (int i = 0; i < visibleCount; ++i) {
+                            int o = i * BOUNDS_STRIDE;
+                            if (bounds[o + 3] < stripMin || bounds[o + 2] >= stripMax) {
+                                continue;
+                            }
+                            shader.drawVerts(visible[i]);
+                        }
+                    }
+                    if (shader.isVisibilityBuffer()) {
+                        // the strip is all ours and every tri has been through it, so shade it right away
+                        shader.resolveVisibility(visibleLists);
                     }
                 }
 
@@ -117,41 +188,389 @@ public class MultithreadedRenderer {
         }
     }
 
-    public void renderMesh(Mesh mesh) {
-        currentMesh = mesh;
-        loadingCamera = false;
-
-        // Allow space for at most 2 triangles per input triangle (typical for near-plane clipping)
-        int required = mesh.tris.length * 2;
-        if (required > vertExportPoolSize) {
-            VertexShader.VertExport[] past = vertExportPool;
-            vertExportPool = new VertexShader.VertExport[required];
-            System.arraycopy(past, 0, vertExportPool, 0, vertExportPoolSize);
-            for (int i = vertExportPoolSize; i < vertExportPool.length; ++i) {
-                vertExportPool[i] = new VertexShader.VertExport();
+    /**
+     * Fills the vertex cache for the frame-wide vertex range [start, end), which can span several meshes.
+     */
+    private void transformVertices(VertexShader vertexShader, DrawList drawList, int start, int end) {
+        for (int m = 0; m < drawList.size(); ++m) {
+            int meshStart = drawList.getVertexOffset(m);
+            int meshEnd = drawList.getVertexOffset(m + 1);
+            if (meshStart >= end) break;
+            if (meshEnd <= start) continue;
+
+            Mesh mesh = drawList.get(m);
+            vertexShader.loadModel(mesh);
+            vertexShader.transformVertices(mesh, Math.max(start, meshStart) - meshStart, Math.min(end, meshEnd) - meshStart, clipCache, meshStart);
+        }
+    }
+
+    /**
+     * Assembles the frame-wide tri range [start, end) into this worker's visible list (binning as it goes
+     * in tile mode).
+     * @return number of tris that survived
+     */
+    private int assembleTris(int threadIndex, VertexShader vertexShader, DrawList drawList, int start, int end, boolean bin) {
+        VertexShader.VertExport[] list = visibleLists[threadIndex];
+        int[] bounds = visibleBounds[threadIndex];
+        float[] nearest = visibleNearest[threadIndex];
+        TileBinner binner = binners[threadIndex];
+        int count = 0;
+
+        for (int m = 0; m < drawList.size(); ++m) {
+            int meshStart = drawList.getTriOffset(m);
+            int meshEnd = drawList.getTriOffset(m + 1);
+            if (meshStart >= end) break;
+            if (meshEnd <= start) continue;
+
+            Mesh mesh = drawList.get(m);
+            int[] order = drawList.getTriOrder(m);
+            int clipBase = drawList.getVertexOffset(m);
+            vertexShader.loadModel(mesh);
+
+            int to = Math.min(end, meshEnd) - meshStart;
+            for (int i = Math.max(start, meshStart) - meshStart; i < to; ++i) {
+                // clipping can turn one tri into several, so the list can outgrow the initial one per tri estimate
+                if (count + VertexShader.MAX_CLIPPED_TRIS > list.length) {
+                    ensureListCapacity(threadIndex, count + VertexShader.MAX_CLIPPED_TRIS);
+                    list = visibleLists[threadIndex];
+                    bounds = visibleBounds[threadIndex];
+                    nearest = visibleNearest[threadIndex];
+                }
+
+                int tri = order == null ? i : order[i];
+                int produced = vertexShader.processTri(mesh, tri, clipCache, clipBase, list, count);
+
+                for (int j = count; j < count + produced; ++j) {
+                    VertexShader.VertExport verts = list[j];
+                    verts.visibilityId = PixelShader.packVisibilityId(threadIndex, j);
+                    // union of what the scanline and half-space rasterizers might touch, still hot in cache here
+                    int o = j * BOUNDS_STRIDE;
+                    bounds[o] = Math.min(verts.minX, verts.pixelMinX);
+                    bounds[o + 1] = Math.max(verts.maxX, verts.pixelMaxX);
+                    bounds[o + 2] = Math.min(verts.minY, verts.pixelMinY);
+                    bounds[o + 3] = Math.max(verts.maxY, verts.pixelMaxY);
+                    nearest[j] = verts.maxInvZ;
+                    if (bin) {
+                        binner.bin(j, verts);
+                    }
+                }
+                count += produced;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Pulls tiles off the shared queue until it runs dry. Each tile is drawn from the bins of every worker
+     * in worker order, so triangles still hit a given pixel in submission order.
+     * Bins hold indices into the visible list of the worker that binned them.
+     */
+    private void rasterizeTiles(PixelShader shader) {
+        // Only the half-space rasterizer raises the far values, with SCANLINE they stay at the clear value and the
+        // test below could never reject anything, so don't pay for the lookup
+        boolean hierarchicalZ = shader.isHierarchicalZ() && shader.getRasterizer() == PixelShader.Rasterizer.HALF_SPACE;
+        HierarchicalZ hiZ = target.hiZ;
+        int tileCount = binners[0].getTileCount();
+        int tilesX = binners[0].getTilesX();
+
+        int tile;
+        while ((tile = nextTile.getAndIncrement()) < tileCount) {
+            int tileX = (tile % tilesX) << TileBinner.TILE_SHIFT;
+            int tileY = (tile / tilesX) << TileBinner.TILE_SHIFT;
+            shader.setBounds(tileX, tileY, Math.min(X, tileX + TileBinner.TILE_SIZE), Math.min(Y, tileY + TileBinner.TILE_SIZE));
+
+            for (int t = 0; t < numThreads; ++t) {
+                VertexShader.VertExport[] visible = visibleLists[t];
+                float[] nearest = visibleNearest[t];
+                int[] bin = binners[t].getBin(tile);
+                int count = binners[t].getBinCount(tile);
+                for (int i = 0; i < count; ++i) {
+                    int index = bin[i];
+                    // whole tri is behind everything already in the tile
+                    if (hierarchicalZ && nearest[index] <= hiZ.getTileFar(tile)) {
+                        continue;
+                    }
+                    shader.drawVerts(visible[index]);
+                }
+            }
+            if (shader.isVisibilityBuffer()) {
+                shader.resolveVisibility(visibleLists);
             }
-            vertExportPoolSize = vertExportPool.length;
         }
+    }
+
+    /**
+     * Even split of [0, total) across workers. The last worker also picks up the remainder.
+     */
+    private int sliceStart(int total, int threadIndex) {
+        return Math.min(total, threadIndex * (total / numThreads));
+    }
+
+    private int sliceEnd(int total, int threadIndex) {
+        if (threadIndex == numThreads - 1) {
+            return total;
+        }
+        return Math.min(total, (threadIndex + 1) * (total / numThreads));
+    }
+
+    /**
+     * Grows a worker's visible list (and the flat arrays next to it). Only ever called by the worker that owns
+     * the list (or before it starts).
+     */
+    private void ensureListCapacity(int threadIndex, int required) {
+        VertexShader.VertExport[] past = visibleLists[threadIndex];
+        if (required <= past.length) {
+            return;
+        }
+
+        VertexShader.VertExport[] list = new VertexShader.VertExport[Math.max(required, past.length * 2)];
+        System.arraycopy(past, 0, list, 0, past.length);
+        for (int i = past.length; i < list.length; ++i) {
+            list[i] = new VertexShader.VertExport();
+        }
+        visibleLists[threadIndex] = list;
+        visibleBounds[threadIndex] = Arrays.copyOf(visibleBounds[threadIndex], list.length * BOUNDS_STRIDE);
+        visibleNearest[threadIndex] = Arrays.copyOf(visibleNearest[threadIndex], list.length);
+    }
+
+    public FrameBuffer getTarget() {
+        return target;
+    }
+
+    public void setRasterMode(RasterMode mode) {
+        rasterMode = mode;
+    }
+
+    public RasterMode getRasterMode() {
+        return rasterMode;
+    }
+
+    /**
+     * Picks how triangles get turned into pixels, see PixelShader.Rasterizer. Only call this between frames,
+     * the barriers take care of the workers seeing it.
+     */
+    public void setRasterizer(PixelShader.Rasterizer rasterizer) {
+        for (PixelShader shader : shaders) {
+            shader.setRasterizer(rasterizer);
+        }
+        for (VertexShader vertexShader : vertexShadersPool) {
+            vertexShader.setCullSampleless(rasterizer == PixelShader.Rasterizer.HALF_SPACE);
+        }
+    }
+
+    public PixelShader.Rasterizer getRasterizer() {
+        return shaders[0].getRasterizer();
+    }
+
+    /**
+     * Visibility buffer (deferred) shading, off by default: the raster pass only writes depth + tri ids, then each
+     * worker shades its strip/tile once it's done with it, so every pixel gets textured exactly once no matter how
+     * much overdraw there is. Worth it for scenes with lots of depth complexity. Between frames only.
+     */
+    public void setVisibilityBuffer(boolean visibilityBuffer) {
+        if (visibilityBuffer && numThreads > PixelShader.MAX_VISIBILITY_LISTS) {
+            throw new IllegalStateException("visibility buffer ids only have room for "
+                    + PixelShader.MAX_VISIBILITY_LISTS + " workers, this renderer has " + numThreads);
+        }
+        for (PixelShader shader : shaders) {
+            shader.setVisibilityBuffer(visibilityBuffer);
+        }
+    }
+
+    public boolean isVisibilityBuffer() {
+        return shaders[0].isVisibilityBuffer();
+    }
+
+    /**
+     * Hierarchical Z rejection, on by default: whole tris per tile in tiles mode, and 8x8 blocks, both only with
+     * the half-space rasterizer (it's the one that keeps HiZ up to date). Between frames only, same as
+     * setRasterizer.
+     */
+    public void setHierarchicalZ(boolean hierarchicalZ) {
+        for (PixelShader shader : shaders) {
+            shader.setHierarchicalZ(hierarchicalZ);
+        }
+    }
 
+    public boolean isHierarchicalZ() {
+        return shaders[0].isHierarchicalZ();
+    }
+
+    /**
+     * Renders a whole frame's worth of meshes. The main thread only syncs with the workers twice
+     * (start and end) no matter how many meshes are in the list.
+     * Meshes whose bounds are entirely outside the camera frustum are dropped before any worker sees them, and
+     * the rest get drawn nearest first.
+     * loadCamera must have been called at some point before this.
+     */
+    public void render(DrawList drawList) {
+        if (frustumCulling || occlusionCulling) {
+            drawList = cull(drawList);
+        }
+        if (depthSorting) {
+            drawList = sortFrontToBack(drawList);
+        }
+        currentDrawList = drawList;
+        nextTile.set(0);
+
+        // x, y, z, w per vertex, all in one array, so a frame tops out at Integer.MAX_VALUE / 4 vertices
+        int required;
         try {
-            startBarrier.await();  // Should process vertices
-            midDraw.await();       // Start rasterizing
+            required = Math.multiplyExact(drawList.getTotalVertices(), 4);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("draw list has " + drawList.getTotalVertices()
+                    + " vertices, the clip space cache only has room for " + Integer.MAX_VALUE / 4, e);
+        }
+        if (clipCache.length < required) {
+            clipCache = new float[required];
+        }
+
+        try {
+            startBarrier.await();  // Workers do vertices, then tris, then raster
             endBarrier.await();    // Wait for completion :/
         } catch (InterruptedException | BrokenBarrierException e) {
             Thread.currentThread().interrupt();
         }
     }
 
-    public void loadCamera(Camera camera) {
-        currentCamera = camera;
-        loadingCamera = true;
+    /**
+     * Drops the meshes of drawList that can't be on screen: outside the camera frustum, or (if any meshes in the
+     * list are occluders) hidden behind the occluders. Runs on the submitting thread, before any worker gets
+     * going, so the workers only ever see what survives.
+     */
+    private DrawList cull(DrawList drawList) {
+        Frustum frustum = currentCamera.getFrustum();
+        culledList.clear();
+        if (occlusionCulling) {
+            occlusionCuller.begin(currentCamera.getViewProjectionMatrix());
+        }
 
-        try {
-            startBarrier.await();  // Release workers
-            endBarrier.await();    // Wait for completion
-        } catch (InterruptedException | BrokenBarrierException e) {
-            Thread.currentThread().interrupt();
+        for (int i = 0; i < drawList.size(); ++i) {
+            Mesh mesh = drawList.get(i);
+            if (!frustumCulling || frustum.intersects(mesh)) {
+                culledList.add(mesh);
+                if (occlusionCulling && mesh.occluder) {
+                    occlusionCuller.addOccluder(mesh);
+                }
+            }
+        }
+
+        if (!occlusionCulling || !occlusionCuller.hasOccluders()) {
+            return culledList;
+        }
+
+        // occluders themselves always stay, a flat one would otherwise count as hidden behind itself
+        unoccludedList.clear();
+        for (int i = 0; i < culledList.size(); ++i) {
+            Mesh mesh = culledList.get(i);
+            if (mesh.occluder || !occlusionCuller.isOccluded(mesh)) {
+                unoccludedList.add(mesh);
+            }
+        }
+        return unoccludedList;
+    }
+
+    /**
+     * Reorders the (already culled) meshes nearest first by the view depth of their bounding sphere's front, and
+     * picks a near-to-far tri order for every big mesh. Nothing here changes the image, it just gets the near stuff
+     * into the depth buffer early so more of what's behind it fails the depth test (and hierarchical Z) before
+     * anyone samples a texture for it.
+     */
+    private DrawList sortFrontToBack(DrawList drawList) {
+        int n = drawList.size();
+        if (sortKeys.length < n) {
+            sortKeys = new long[n * 2];
+        }
+
+        Matrix4 vp = currentCamera.getViewProjectionMatrix();
+        for (int i = 0; i < n; ++i) {
+            Mesh mesh = drawList.get(i);
+            Matrix4 m = mesh.getModelMatrix();
+            float lx = mesh.boundsCenter.x, ly = mesh.boundsCenter.y, lz = mesh.boundsCenter.z;
+            float cx = m.m00 * lx + m.m01 * ly + m.m02 * lz + m.m03;
+            float cy = m.m10 * lx + m.m11 * ly + m.m12 * lz + m.m13;
+            float cz = m.m20 * lx + m.m21 * ly + m.m22 * lz + m.m23;
+
+            // clip w is the view depth. Anything reaching behind the camera just ties at 0, order among those is moot.
+            float depth = vp.m30 * cx + vp.m31 * cy + vp.m32 * cz + vp.m33 - mesh.boundsRadius;
+            // non negative floats sort the same as their bits
+            sortKeys[i] = ((long) Float.floatToIntBits(Math.max(depth, 0f)) << 32) | i;
         }
+        Arrays.sort(sortKeys, 0, n);
+
+        Vec4 eye = currentCamera.transform;
+        sortedList.clear();
+        for (int k = 0; k < n; ++k) {
+            Mesh mesh = drawList.get((int) sortKeys[k]);
+            int[] order = null;
+            if (mesh.triCount >= DEPTH_ORDER_MIN_TRIS && mesh.triCount <= DEPTH_ORDER_MAX_TRIS) {
+                order = mesh.getDepthOrder(viewOctant(mesh, eye));
+            }
+            sortedList.add(mesh, order);
+        }
+        return sortedList;
+    }
+
+    /**
+     * Octant (see Mesh.getDepthOrder) of the direction from the eye to the mesh's center, in the mesh's model space.
+     */
+    private static int viewOctant(Mesh mesh, Vec4 eye) {
+        Matrix4 m = mesh.getModelMatrix();
+        float lx = mesh.boundsCenter.x, ly = mesh.boundsCenter.y, lz = mesh.boundsCenter.z;
+        float dx = m.m00 * lx + m.m01 * ly + m.m02 * lz + m.m03 - eye.x;
+        float dy = m.m10 * lx + m.m11 * ly + m.m12 * lz + m.m13 - eye.y;
+        float dz = m.m20 * lx + m.m21 * ly + m.m22 * lz + m.m23 - eye.z;
+
+        // model matrix is rotation + translation, so back to model space is the transposed rotation
+        float mx = m.m00 * dx + m.m10 * dy + m.m20 * dz;
+        float my = m.m01 * dx + m.m11 * dy + m.m21 * dz;
+        float mz = m.m02 * dx + m.m12 * dy + m.m22 * dz;
+        return (mx < 0 ? 1 : 0) | (my < 0 ? 2 : 0) | (mz < 0 ? 4 : 0);
+    }
+
+    /**
+     * Front-to-back ordering of meshes (and of the tris inside big meshes), on by default. See sortFrontToBack.
+     */
+    public void setDepthSorting(boolean enabled) {
+        depthSorting = enabled;
+    }
+
+    /**
+     * Per tri mip level selection, on by default. Off samples every texture at full resolution.
+     */
+    public void setMipmapping(boolean enabled) {
+        for (VertexShader vertexShader : vertexShadersPool) {
+            vertexShader.setMipmapping(enabled);
+        }
+    }
+
+    public void setFrustumCulling(boolean enabled) {
+        frustumCulling = enabled;
+    }
+
+    /**
+     * Only does anything if some meshes have Mesh.occluder set.
+     */
+    public void setOcclusionCulling(boolean enabled) {
+        occlusionCulling = enabled;
+    }
+
+    /**
+     * Draws a single mesh on top of whatever is already in the target. Prefer render(DrawList) when drawing
+     * more than one mesh per frame.
+     */
+    public void renderMesh(Mesh mesh) {
+        singleMesh.clear();
+        singleMesh.add(mesh);
+        render(singleMesh);
+    }
+
+    /**
+     * Sets the camera for subsequent frames. Workers pick it up at the start of each frame.
+     */
+    public void loadCamera(Camera camera) {
+        currentCamera = camera;
     }
 
     public void cleanup() {
@@ -0,0 +1,244 @@
+package rasterizer;
+
+import math.Matrix4;
+import math.Vec4;
+import world.Mesh;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Mesh level occlusion culling on the submitting thread. Meshes flagged as occluders get rasterized (depth only)
+ * into a small buffer, a quarter of the screen resolution on each axis, then every other mesh's bounding box
+ * gets projected and checked against it. If the box's nearest point is behind the occluders everywhere it
+ * lands, the whole mesh is skipped before any worker sees it.
+ * Everything in here errs on the side of drawing. Occluders are rasterized at pixel centers like normal, then the
+ * buffer goes through a 3x3 min filter: a pixel only keeps occluding if all its neighbours are covered too, and
+ * with the farthest depth among them. That eats the fringe along occluder silhouettes where a low res pixel is
+ * only partly covered, without opening cracks along the edges between an occluder's own tris (which a strict
+ * "whole pixel inside one tri" test would). Tris/boxes poking through the near plane are left alone.
+ * Good occluders are big and cheap: walls, floors, terrain, buildings. Not suzanne.
+ */
+public class OcclusionCuller {
+    public static final int DOWNSAMPLE_SHIFT = 2;
+    // pushes occluder depth a hair farther so float error in the plane math can't make it too near
+    private static final float DEPTH_BIAS = 1.0f - 1e-4f;
+
+    private final int width, height;
+    // screen size / 2 in low res pixels, for going from NDC straight to the small buffer
+    private final float screenHalfX, screenHalfY;
+    private final float[] depth;
+    // depth after the min filter, which is what meshes get tested against. Rebuilt lazily after occluders change.
+    private final float[] filtered;
+    private final float[] filterScratch;
+    private boolean filterDirty;
+
+    private final Matrix4 mvp = new Matrix4();
+    private Matrix4 viewProjection;
+    private boolean hasOccluders;
+
+    // per vertex screen x, y and invZ of the occluder being drawn, w < NEAR_PLANE is flagged with NaN
+    private float[] projected = new float[0];
+    private final Vec4 corner = new Vec4(0, 0, 0, 1);
+    private final Vec4 clip = new Vec4(0, 0, 0, 1);
+
+    public OcclusionCuller(int screenX, int screenY) {
+        float scale = 1.0f / (1 << DOWNSAMPLE_SHIFT);
+        width = (screenX + (1 << DOWNSAMPLE_SHIFT) - 1) >> DOWNSAMPLE_SHIFT;
+        height = (screenY + (1 << DOWNSAMPLE_SHIFT) - 1) >> DOWNSAMPLE_SHIFT;
+        depth = new float[width * height];
+        filtered = new float[width * height];
+        filterScratch = new float[width * height];
+        screenHalfX = screenX * 0.5f * scale;
+        screenHalfY = screenY * 0.5f * scale;
+    }
+
+    /**
+     * Starts a new frame: forgets all occluders.
+     * @param viewProjection the camera's, needs to stay untouched until the frame's tests are done
+     */
+    public void begin(Matrix4 viewProjection) {
+        this.viewProjection = viewProjection;
+        Arrays.fill(depth, Integer.MIN_VALUE);
+        hasOccluders = false;
+    }
+
+    public boolean hasOccluders() {
+        return hasOccluders;
+    }
+
+    public void addOccluder(Mesh mesh) {
+        hasOccluders = true;
+        filterDirty = true;
+        viewProjection.mul(mesh.getModelMatrix(), mvp);
+
+        FloatBuffer positions = mesh.positions;
+        if (projected.length < positions.limit()) {
+            projected = new float[positions.limit()];
+        }
+        for (int i = 0; i < positions.limit(); i += 3) {
+            corner.x = positions.get(i);
+            corner.y = positions.get(i + 1);
+            corner.z = positions.get(i + 2);
+            project(corner, i);
+        }
+
+        IntBuffer indices = mesh.indices;
+        for (int i = 0; i < indices.limit(); i += 3) {
+            rasterizeTri(indices.get(i) * 3, indices.get(i + 1) * 3, indices.get(i + 2) * 3);
+        }
+    }
+
+    /**
+     * @return true only if the mesh's bounding box is hidden behind the occluders everywhere on screen
+     */
+    public boolean isOccluded(Mesh mesh) {
+        if (!hasOccluders) {
+            return false;
+        }
+        if (filterDirty) {
+            minFilter();
+            filterDirty = false;
+        }
+        viewProjection.mul(mesh.getModelMatrix(), mvp);
+
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        float nearest = Float.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < 8; ++i) {
+            corner.x = (i & 1) == 0 ? mesh.boundsMin.x : mesh.boundsMax.x;
+            corner.y = (i & 2) == 0 ? mesh.boundsMin.y : mesh.boundsMax.y;
+            corner.z = (i & 4) == 0 ? mesh.boundsMin.z : mesh.boundsMax.z;
+            corner.transform(mvp, clip);
+
+            if (clip.w < VertexShader.NEAR_PLANE) {
+                // box goes through the near plane, so the camera could be looking at anything in it
+                return false;
+            }
+
+            // w is linear over the box, so its nearest point is one of the corners
+            float invW = 1.0f / clip.w;
+            float x = (clip.x * invW + 1f) * screenHalfX;
+            float y = (clip.y * invW + 1f) * screenHalfY;
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+            nearest = Math.max(nearest, invW);
+        }
+
+        // one full res pixel of margin, the real rasterizer snaps vertices to sub-pixels and may land just outside
+        float margin = 1.0f / (1 << DOWNSAMPLE_SHIFT);
+        int x0 = Math.max(0, (int) Math.floor(minX - margin));
+        int x1 = Math.min(width - 1, (int) Math.floor(maxX + margin));
+        int y0 = Math.max(0, (int) Math.floor(minY - margin));
+        int y1 = Math.min(height - 1, (int) Math.floor(maxY + margin));
+        if (x0 > x1 || y0 > y1) {
+            // off screen, that's the frustum's call
+            return false;
+        }
+
+        for (int y = y0; y <= y1; ++y) {
+            int row = y * width;
+            for (int x = x0; x <= x1; ++x) {
+                if (nearest > filtered[row + x]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void project(Vec4 vertex, int out) {
+        vertex.transform(mvp, clip);
+        if (clip.w < VertexShader.NEAR_PLANE) {
+            projected[out] = Float.NaN;
+            return;
+        }
+        float invW = 1.0f / clip.w;
+        projected[out] = (clip.x * invW + 1f) * screenHalfX;
+        projected[out + 1] = (clip.y * invW + 1f) * screenHalfY;
+        projected[out + 2] = invW;
+    }
+
+    /**
+     * Plain depth only raster at pixel centers. Backfaces never get drawn, so they can't hide anything either.
+     */
+    private void rasterizeTri(int a, int b, int c) {
+        float ax = projected[a], ay = projected[a + 1], az = projected[a + 2];
+        float bx = projected[b], by = projected[b + 1], bz = projected[b + 2];
+        float cx = projected[c], cy = projected[c + 1], cz = projected[c + 2];
+        if (Float.isNaN(ax) || Float.isNaN(bx) || Float.isNaN(cx)) {
+            // crosses the near plane. Just not occluding with it is simpler than clipping and still correct.
+            return;
+        }
+
+        float area = (bx - ax) * (cy - ay) - (cx - ax) * (by - ay);
+        if (area <= 0) {
+            return;
+        }
+
+        int x0 = Math.max(0, (int) Math.ceil(Math.min(Math.min(ax, bx), cx) - 0.5f));
+        int x1 = Math.min(width - 1, (int) Math.floor(Math.max(Math.max(ax, bx), cx) - 0.5f));
+        int y0 = Math.max(0, (int) Math.ceil(Math.min(Math.min(ay, by), cy) - 0.5f));
+        int y1 = Math.min(height - 1, (int) Math.floor(Math.max(Math.max(ay, by), cy) - 0.5f));
+        if (x0 > x1 || y0 > y1) {
+            return;
+        }
+
+        // edges as A * x + B * y + C >= 0 inside (same orientation as VertexShader's setup)
+        float a0 = ay - by, b0 = bx - ax, c0 = -(a0 * ax + b0 * ay);
+        float a1 = by - cy, b1 = cx - bx, c1 = -(a1 * bx + b1 * by);
+        float a2 = cy - ay, b2 = ax - cx, c2 = -(a2 * cx + b2 * cy);
+
+        float invArea = 1.0f / area;
+        float dzdx = ((bz - az) * (cy - ay) - (cz - az) * (by - ay)) * invArea;
+        float dzdy = ((cz - az) * (bx - ax) - (bz - az) * (cx - ax)) * invArea;
+        float minZ = Math.min(Math.min(az, bz), cz);
+
+        for (int y = y0; y <= y1; ++y) {
+            float py = y + 0.5f;
+            int row = y * width;
+            for (int x = x0; x <= x1; ++x) {
+                float px = x + 0.5f;
+                if (a0 * px + b0 * py + c0 < 0 || a1 * px + b1 * py + c1 < 0 || a2 * px + b2 * py + c2 < 0) {
+                    continue;
+                }
+
+                float z = az + (px - ax) * dzdx + (py - ay) * dzdy;
+                // the tri never gets farther than its farthest vertex, keeps skinny tris' gradients honest
+                z = Math.max(z, minZ) * DEPTH_BIAS;
+                if (z > depth[row + x]) {
+                    depth[row + x] = z;
+                }
+            }
+        }
+    }
+
+    /**
+     * filtered = min of depth over each pixel's 3x3 neighbourhood, done as a horizontal then a vertical pass.
+     * Neighbours off the edge of the screen are ignored, the occluders don't stop there.
+     */
+    private void minFilter() {
+        for (int y = 0; y < height; ++y) {
+            int row = y * width;
+            for (int x = 0; x < width; ++x) {
+                float v = depth[row + x];
+                if (x > 0) v = Math.min(v, depth[row + x - 1]);
+                if (x < width - 1) v = Math.min(v, depth[row + x + 1]);
+                filterScratch[row + x] = v;
+            }
+        }
+        for (int y = 0; y < height; ++y) {
+            int row = y * width;
+            for (int x = 0; x < width; ++x) {
+                float v = filterScratch[row + x];
+                if (y > 0) v = Math.min(v, filterScratch[row - width + x]);
+                if (y < height - 1) v = Math.min(v, filterScratch[row + width + x]);
+                filtered[row + x] = v;
+            }
+        }
+    }
+}
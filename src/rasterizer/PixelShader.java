@@ -1,109 +1,191 @@
 package rasterizer;
 
-import math.Vec4;
 import world.UVTexture;
 
+import java.util.Arrays;
+
 public class PixelShader {
-    private final BarycentricWeights weights = new BarycentricWeights(0, 0, 0);
-    private final Vec4 lightVec = new Vec4(0, -1, -0.2f, 0);
+    /**
+     * SCANLINE walks the two flat segments with float edge slopes and truncates to whole pixels, which is quick
+     * but can leave cracks or double draw pixels along shared edges.
+     * HALF_SPACE evaluates the three fixed point edge functions over 8x8 blocks: blocks fully outside an edge are
+     * skipped, blocks fully inside are filled without any tests, only edge blocks get tested per pixel. With the
+     * top-left fill rule every pixel center along a shared edge is drawn exactly once.
+     */
+    public enum Rasterizer { SCANLINE, HALF_SPACE }
+
+    // raster blocks line up with the hierarchical Z blocks, so each one can be tested against exactly one
+    private static final int BLOCK_SHIFT = HierarchicalZ.BLOCK_SHIFT;
+    private static final int BLOCK_SIZE = HierarchicalZ.BLOCK_SIZE;
+
+    private final FrameBuffer target;
     private int xmin, ymin, xmax, ymax;
-
-    {
-        lightVec.normalizeSelf();
+    private Rasterizer rasterizer = Rasterizer.SCANLINE;
+    private boolean hierarchicalZ = true;
+    private SpanKernel spanKernel = SpanKernel.create();
+    // visibility buffer mode: spans only write depth + tri id, resolveVisibility does the shading afterwards
+    private boolean visibilityBuffer;
+    private final SpanKernel visibilityKernel = new VisibilitySpanKernel();
+    // for compressed textures in resolveVisibility, the span kernels keep their own
+    private final UVTexture.BlockCache blockCache = new UVTexture.BlockCache();
+
+    // VertExport.visibilityId layout: which visible list in the top bits, index in that list in the low ones
+    // (so up to 128 lists of 16M tris each, packVisibilityId throws past either rather than handing out an id
+    // that resolves to some other tri)
+    public static final int VISIBILITY_INDEX_BITS = 24;
+    public static final int VISIBILITY_INDEX_MASK = (1 << VISIBILITY_INDEX_BITS) - 1;
+    public static final int MAX_VISIBILITY_LISTS = 1 << (31 - VISIBILITY_INDEX_BITS);
+
+    // pending pixel runs per row of the current row of blocks, see extendRun
+    private static final int NO_RUN = Integer.MIN_VALUE;
+    private final int[] runStarts = new int[BLOCK_SIZE];
+    private final int[] runEnds = new int[BLOCK_SIZE];
+
+    public PixelShader(FrameBuffer target, int xmin, int ymin, int xmax, int ymax) {
+        this.target = target;
+        this.xmin = xmin;
+        this.ymin = ymin;
+        this.xmax = xmax;
+        this.ymax = ymax;
+        Arrays.fill(runEnds, NO_RUN);
     }
 
-    public PixelShader(int xmin, int ymin, int xmax, int ymax) {
+    /**
+     * Moves the clip rectangle this shader draws into. Used by the tiled raster mode, which hands the same
+     * shader a different tile every time.
+     */
+    public void setBounds(int xmin, int ymin, int xmax, int ymax) {
         this.xmin = xmin;
         this.ymin = ymin;
         this.xmax = xmax;
         this.ymax = ymax;
     }
 
-    public void drawVerts(VertexShader.VertExport verts, UVTexture texture, boolean backfaceCulling) {
-            int minY = Math.min(Math.min(verts.aY, verts.bY), verts.cY);
-            int maxY = Math.max(Math.max(verts.aY, verts.bY), verts.cY);
-
-            if (maxY < ymin || minY >= ymax) {
-                return;
-            }
-            if (verts.aInvZ <= 0 || verts.bInvZ <= 0 || verts.cInvZ <= 0) {
-                return;
-            }
-
-            drawVertsPriv(verts, texture, backfaceCulling);
+    public void setRasterizer(Rasterizer rasterizer) {
+        this.rasterizer = rasterizer;
     }
 
-    private void drawVertsPriv(VertexShader.VertExport verts, UVTexture texture, boolean backfaceCulling) {
-        int areaTotal = (verts.bX - verts.aX) * (verts.cY - verts.aY) - (verts.cX - verts.aX) * (verts.bY - verts.aY);
-        if (areaTotal <= 0) return;
-
-        // a has "priority" for being top. if aY = bY, a wins. if aY = cY, a wins.
-        int isAMax = (verts.aY >= verts.bY && verts.aY >= verts.cY) ? 1 : 0;
-        int isBMax = (verts.bY > verts.aY && verts.bY > verts.cY) ? 1 : 0;
-        int isCMax = 1 - isAMax - isBMax;
-
-        int isAMin = (verts.aY <= verts.bY && verts.aY <= verts.cY) ? 1 : 0;
-        int isBMin = (verts.bY < verts.aY && verts.bY < verts.cY) ? 1 : 0;
-        int isCMin = 1 - isAMin - isBMin;
+    public Rasterizer getRasterizer() {
+        return rasterizer;
+    }
 
-        int isAMid = 1 - isAMax - isAMin;
-        int isBMid = 1 - isBMax - isBMin;
-        int isCMid = 1 - isCMax - isCMin;
+    /**
+     * Whether the half-space rasterizer skips 8x8 blocks the target's HierarchicalZ says are hidden
+     * (and keeps it up to date). The scanline rasterizer doesn't keep it up to date, so it gets no HiZ at all.
+     */
+    public void setHierarchicalZ(boolean hierarchicalZ) {
+        this.hierarchicalZ = hierarchicalZ;
+    }
 
-        int maxX = isAMax * verts.aX + isBMax * verts.bX + isCMax * verts.cX;
-        int maxY = isAMax * verts.aY + isBMax * verts.bY + isCMax * verts.cY;
+    public boolean isHierarchicalZ() {
+        return hierarchicalZ;
+    }
 
-        int midX = isAMid * verts.aX + isBMid * verts.bX + isCMid * verts.cX;
-        int midY = isAMid * verts.aY + isBMid * verts.bY + isCMid * verts.cY;
+    /**
+     * Defaults to SpanKernel.create(), i.e. SIMD when the vector module is there.
+     */
+    public void setSpanKernel(SpanKernel spanKernel) {
+        this.spanKernel = spanKernel;
+    }
 
-        int minX = isAMin * verts.aX + isBMin * verts.bX + isCMin * verts.cX;
-        int minY = isAMin * verts.aY + isBMin * verts.bY + isCMin * verts.cY;
+    public SpanKernel getSpanKernel() {
+        return spanKernel;
+    }
 
-        int dx1 = maxX - minX;
-        int dy1 = maxY - minY;
-        int dx2 = midX - minX;
-        int dy2 = midY - minY;
-        int cross = dx1 * dy2 - dy1 * dx2;
+    /**
+     * Visibility buffer (deferred) mode: drawing a tri only writes depth and its visibilityId into the target's
+     * triIds, and nothing gets textured until resolveVisibility. Every pixel is shaded exactly once however much
+     * overdraw there was. Whoever draws has to fill in visibilityId (see packVisibilityId) and call
+     * resolveVisibility over the same bounds before the VertExports go away.
+     */
+    public void setVisibilityBuffer(boolean visibilityBuffer) {
+        this.visibilityBuffer = visibilityBuffer;
+    }
 
-        int isMaxLeft = (cross < 0) ? 1 : 0;
-        int isMidLeft = 1 - isMaxLeft;
+    public boolean isVisibilityBuffer() {
+        return visibilityBuffer;
+    }
 
-        int leftX = (isMaxLeft * maxX + isMidLeft * midX);
-        int leftY = (isMaxLeft * maxY + isMidLeft * midY);
-        int rightX = ((1 - isMaxLeft) * maxX + (1 - isMidLeft) * midX);
-        int rightY = ((1 - isMaxLeft) * maxY + (1 - isMidLeft) * midY);
+    /**
+     * @throws IllegalArgumentException if list isn't below MAX_VISIBILITY_LISTS or index doesn't fit in
+     * VISIBILITY_INDEX_BITS
+     */
+    public static int packVisibilityId(int list, int index) {
+        // unsigned so negatives fail too
+        if (Integer.compareUnsigned(list, MAX_VISIBILITY_LISTS) >= 0
+                || Integer.compareUnsigned(index, VISIBILITY_INDEX_MASK) > 0) {
+            throw new IllegalArgumentException("visibility ids only have room for " + MAX_VISIBILITY_LISTS
+                    + " lists of " + (VISIBILITY_INDEX_MASK + 1) + " tris, got list " + list + " index " + index);
+        }
+        return (list << VISIBILITY_INDEX_BITS) | index;
+    }
 
-        float dot = verts.norm.dot(lightVec);
-        dot = backfaceCulling ? dot : Math.abs(dot);
-        float lightLevel = Math.clamp(dot, 0.1f, 1);
+    private SpanKernel currentKernel() {
+        return visibilityBuffer ? visibilityKernel : spanKernel;
+    }
 
-        if (minY != midY) {
-            float invSlopeLeft = (float) (minX - leftX) / (minY - leftY);
-            float invSlopeRight = (float) (minX - rightX) / (minY - rightY);
+    /**
+     * Shades every pixel in the current bounds that got a tri since the last resolve, and marks it empty again.
+     * @param lists what the visibilityIds point into, lists[list][index]
+     */
+    public void resolveVisibility(VertexShader.VertExport[][] lists) {
+        int[] ids = target.triIds;
+        int[] pixels = target.pixels;
+        float[] depth = target.depth;
+
+        for (int y = ymin; y < ymax; ++y) {
+            int row = target.getPixelLocation(0, y);
+            for (int x = xmin; x < xmax; ++x) {
+                int idx = row + x;
+                int id = ids[idx];
+                if (id == FrameBuffer.NO_TRI) {
+                    continue;
+                }
+                ids[idx] = FrameBuffer.NO_TRI;
+
+                VertexShader.VertExport verts = lists[id >>> VISIBILITY_INDEX_BITS][id & VISIBILITY_INDEX_MASK];
+                // the depth buffer already holds this tri's invZ here, no point working it out again
+                float invZ = depth[idx];
+                float UinvZ = verts.UinvZ0 + x * verts.UinvZdX + y * verts.UinvZdY;
+                float VinvZ = verts.VinvZ0 + x * verts.VinvZdX + y * verts.VinvZdY;
+                // neighbouring pixels are mostly the same tri, so this branch predicts about as well as a per tri one
+                UVTexture.Level level = verts.level;
+                float u = UinvZ / invZ, v = VinvZ / invZ;
+                int texel = level.isCompressed() ? level.getRGBbyUV(u, v, blockCache)
+                        : level.pow2 ? level.getRGBbyUVPow2(u, v) : level.getRGBbyUV(u, v);
+                pixels[idx] = dimARGB(texel, toFactor256(verts.lightLevel));
+            }
+        }
+    }
 
-            rasterizeSegment(verts, minX, minX, minY, midY, areaTotal, invSlopeLeft, invSlopeRight, lightLevel, texture);
+    /**
+     * Draws a triangle that already went through triangle setup in the vertex stage. Nothing in here is done
+     * once per triangle anymore except the bounds test, it's all per block/scanline/pixel.
+     */
+    public void drawVerts(VertexShader.VertExport verts) {
+        if (rasterizer == Rasterizer.HALF_SPACE) {
+            rasterizeHalfSpace(verts);
+            return;
         }
 
-        float leftBoundAtMid, rightBoundAtMid;
-        if (minY != midY) {
-            float invSlopeLeft = (float) (minX - leftX) / (minY - leftY);
-            float invSlopeRight = (float) (minX - rightX) / (minY - rightY);
-            leftBoundAtMid = minX + (midY - minY) * invSlopeLeft;
-            rightBoundAtMid = minX + (midY - minY) * invSlopeRight;
-        } else {
-            leftBoundAtMid = Math.min(minX, midX);
-            rightBoundAtMid = Math.max(minX, midX);
+        if (verts.maxY < ymin || verts.minY >= ymax) {
+            return;
+        }
+        if (verts.maxX < xmin || verts.minX >= xmax) {
+            return;
         }
 
-        float invSlopeLeft2 = (maxX - leftBoundAtMid) / (maxY - midY);
-        float invSlopeRight2 = (maxX - rightBoundAtMid) / (maxY - midY);
+        if (verts.minY != verts.midY) {
+            rasterizeSegment(verts, verts.lowerX, verts.lowerX, verts.minY, verts.midY,
+                    verts.lowerSlopeLeft, verts.lowerSlopeRight);
+        }
 
-        rasterizeSegment(verts, leftBoundAtMid, rightBoundAtMid, midY, maxY, areaTotal, invSlopeLeft2, invSlopeRight2, lightLevel, texture);
+        rasterizeSegment(verts, verts.midLeftX, verts.midRightX, verts.midY, verts.maxY,
+                verts.upperSlopeLeft, verts.upperSlopeRight);
     }
 
-    private void rasterizeSegment(VertexShader.VertExport verts, float startLeftX, float startRightX, int startY, int endY, long areaTotal,
-                                  float invSlopeLeft, float invSlopeRight,
-                                  float lightLevel, UVTexture texture) {
+    private void rasterizeSegment(VertexShader.VertExport verts, float startLeftX, float startRightX, int startY, int endY,
+                                  float invSlopeLeft, float invSlopeRight) {
         int yStart = Math.max(ymin, startY);
         int yEnd = Math.min(ymax, endY);
 
@@ -122,81 +204,158 @@ public class PixelShader {
                 continue;
             }
 
-            getBarycentricWeights(xStart, y,
-                    verts.aX, verts.aY,
-                    verts.bX, verts.bY,
-                    verts.cX, verts.cY, areaTotal);
-
-            float invZ = weightedAverage(verts.aInvZ, weights.w_a, verts.bInvZ, weights.w_b, verts.cInvZ, weights.w_c);
-            float UinvZ = weightedAverage(verts.aUinvZ, weights.w_a, verts.bUinvZ, weights.w_b, verts.cUinvZ, weights.w_c);
-            float VinvZ = weightedAverage(verts.aVinvZ, weights.w_a, verts.bVinvZ, weights.w_b, verts.cVinvZ, weights.w_c);
-
-            getBarycentricWeights(xEnd - 1, y,
-                    verts.aX, verts.aY,
-                    verts.bX, verts.bY,
-                    verts.cX, verts.cY, areaTotal);
-
-            float invZEnd = weightedAverage(verts.aInvZ, weights.w_a, verts.bInvZ, weights.w_b, verts.cInvZ, weights.w_c);
-            float UinvZEnd = weightedAverage(verts.aUinvZ, weights.w_a, verts.bUinvZ, weights.w_b, verts.cUinvZ, weights.w_c);
-            float VinvZEnd = weightedAverage(verts.aVinvZ, weights.w_a, verts.bVinvZ, weights.w_b, verts.cVinvZ, weights.w_c);
-
-            float invZInc = (invZEnd-invZ)/(xEnd-xStart);
-            float UinvZInc = (UinvZEnd-UinvZ)/(xEnd-xStart);
-            float VinvZInc = (VinvZEnd-VinvZ)/(xEnd-xStart);
-
-            for (int x = xStart; x < xEnd; ++x) {
-                draw(x, y, UinvZ, VinvZ, invZ, lightLevel, texture);
-                invZ += invZInc;
-                UinvZ += UinvZInc;
-                VinvZ += VinvZInc;
-            }
+            // evaluate the attribute planes at the start of the span, then it's just adding the x gradient
+            float invZ = verts.invZ0 + xStart * verts.invZdX + y * verts.invZdY;
+            float UinvZ = verts.UinvZ0 + xStart * verts.UinvZdX + y * verts.UinvZdY;
+            float VinvZ = verts.VinvZ0 + xStart * verts.VinvZdX + y * verts.VinvZdY;
+
+            currentKernel().shadeSpan(target, target.getPixelLocation(xStart, y), span, invZ, UinvZ, VinvZ, verts);
 
             leftBound += invSlopeLeft;
             rightBound += invSlopeRight;
         }
     }
 
-    public class BarycentricWeights {
-        public float w_a;
-        public float w_b;
-        public float w_c;
-
-        public BarycentricWeights(float wa, float wb, float wc) {
-            this.w_a = wa;
-            this.w_b = wb;
-            this.w_c = wc;
+    private void rasterizeHalfSpace(VertexShader.VertExport verts) {
+        int x0 = Math.max(xmin, verts.pixelMinX);
+        int x1 = Math.min(xmax - 1, verts.pixelMaxX);
+        int y0 = Math.max(ymin, verts.pixelMinY);
+        int y1 = Math.min(ymax - 1, verts.pixelMaxY);
+        if (x0 > x1 || y0 > y1) {
+            return;
         }
 
-        @Override
-        public String toString() {
-            return "w_a: " + w_a + " w_b: " + w_b +" w_c: " + w_c;
+        // per pixel steps of the edge functions
+        long stepX0 = (long) verts.edge0A * VertexShader.SUBPIXEL_SCALE, stepY0 = (long) verts.edge0B * VertexShader.SUBPIXEL_SCALE;
+        long stepX1 = (long) verts.edge1A * VertexShader.SUBPIXEL_SCALE, stepY1 = (long) verts.edge1B * VertexShader.SUBPIXEL_SCALE;
+        long stepX2 = (long) verts.edge2A * VertexShader.SUBPIXEL_SCALE, stepY2 = (long) verts.edge2B * VertexShader.SUBPIXEL_SCALE;
+
+        HierarchicalZ hiZ = hierarchicalZ ? target.hiZ : null;
+        // last pixel of the screen, blocks hanging off the edge count as whole when they cover everything on screen
+        int screenX1 = target.width - 1, screenY1 = target.height - 1;
+
+        // blocks are on the BLOCK_SIZE grid, then clipped to the tri's box (and our bounds)
+        for (int gy = y0 & -BLOCK_SIZE; gy <= y1; gy += BLOCK_SIZE) {
+            int by = Math.max(y0, gy);
+            int byEnd = Math.min(y1, gy + BLOCK_SIZE - 1);
+            boolean wholeRows = by == gy && byEnd == Math.min(screenY1, gy + BLOCK_SIZE - 1);
+            long dy0 = stepY0 * (byEnd - by), dy1 = stepY1 * (byEnd - by), dy2 = stepY2 * (byEnd - by);
+
+            for (int gx = x0 & -BLOCK_SIZE; gx <= x1; gx += BLOCK_SIZE) {
+                int bx = Math.max(x0, gx);
+                int bxEnd = Math.min(x1, gx + BLOCK_SIZE - 1);
+                long dx0 = stepX0 * (bxEnd - bx), dx1 = stepX1 * (bxEnd - bx), dx2 = stepX2 * (bxEnd - bx);
+
+                // edge values at the bottom left pixel of the block. The functions are linear, so the extremes
+                // over the block are at its corners, and which corner depends only on the sign of the steps.
+                long e0 = verts.edge0C + stepX0 * bx + stepY0 * by;
+                long e1 = verts.edge1C + stepX1 * bx + stepY1 * by;
+                long e2 = verts.edge2C + stepX2 * bx + stepY2 * by;
+
+                boolean outside = e0 + Math.max(0, dx0) + Math.max(0, dy0) < 0
+                        || e1 + Math.max(0, dx1) + Math.max(0, dy1) < 0
+                        || e2 + Math.max(0, dx2) + Math.max(0, dy2) < 0;
+
+                // same corner trick for depth: nearest and farthest invZ the tri has over the block
+                float cornerInvZ = 0, invZdXBlock = 0, invZdYBlock = 0;
+                if (hiZ != null && !outside) {
+                    cornerInvZ = verts.invZ0 + bx * verts.invZdX + by * verts.invZdY;
+                    invZdXBlock = verts.invZdX * (bxEnd - bx);
+                    invZdYBlock = verts.invZdY * (byEnd - by);
+                    float nearest = Math.min(verts.maxInvZ,
+                            cornerInvZ + Math.max(0, invZdXBlock) + Math.max(0, invZdYBlock));
+                    outside = nearest <= hiZ.getBlockFar(gx >> BLOCK_SHIFT, gy >> BLOCK_SHIFT);
+                }
+
+                if (outside) {
+                    flushRuns(verts, by, byEnd);
+                    continue;
+                }
+
+                boolean covered = e0 + Math.min(0, dx0) + Math.min(0, dy0) >= 0
+                        && e1 + Math.min(0, dx1) + Math.min(0, dy1) >= 0
+                        && e2 + Math.min(0, dx2) + Math.min(0, dy2) >= 0;
+
+                if (covered) {
+                    if (hiZ != null && wholeRows && bx == gx && bxEnd == Math.min(screenX1, gx + BLOCK_SIZE - 1)) {
+                        hiZ.raiseBlock(gx >> BLOCK_SHIFT, gy >> BLOCK_SHIFT,
+                                cornerInvZ + Math.min(0, invZdXBlock) + Math.min(0, invZdYBlock));
+                    }
+                    for (int row = 0; row <= byEnd - by; ++row) {
+                        extendRun(verts, row, by, bx, bxEnd);
+                    }
+                } else {
+                    testBlock(verts, bx, by, bxEnd, byEnd, e0, e1, e2, stepX0, stepY0, stepX1, stepY1, stepX2, stepY2);
+                }
+            }
+
+            flushRuns(verts, by, byEnd);
         }
     }
 
-    private void getBarycentricWeights(int x, int y, int ax, int ay, int bx, int by, int cx, int cy, long area) {
-        if (area == 0) {
-            weights.w_a = weights.w_b = weights.w_c = 0;
+    /**
+     * Tris are convex, so every pixel row of a tri is one run. Blocks only hand their piece of it over here and
+     * pieces that touch get glued back together, so the span kernel sees the whole row in one go instead of
+     * 8 pixel stubs. Only a hidden/outside block in the middle splits a row.
+     */
+    private void extendRun(VertexShader.VertExport verts, int row, int by, int start, int end) {
+        if (runEnds[row] == start - 1) {
+            runEnds[row] = end;
             return;
         }
+        if (runEnds[row] != NO_RUN) {
+            shadeRun(verts, by + row, runStarts[row], runEnds[row]);
+        }
+        runStarts[row] = start;
+        runEnds[row] = end;
+    }
 
-        long a = (long)(bx - x) * (cy - y) - (long)(cx - x) * (by - y);
-        long b = (long)(cx - x) * (ay - y) - (long)(ax - x) * (cy - y);
-        long c = (long)(ax - x) * (by - y) - (long)(bx - x) * (ay - y);
-
-        weights.w_a = (float)a / area;
-        weights.w_b = (float)b / area;
-        weights.w_c = (float)c / area;
+    private void flushRuns(VertexShader.VertExport verts, int by, int byEnd) {
+        for (int row = 0; row <= byEnd - by; ++row) {
+            if (runEnds[row] != NO_RUN) {
+                shadeRun(verts, by + row, runStarts[row], runEnds[row]);
+                runEnds[row] = NO_RUN;
+            }
+        }
     }
 
-    private float weightedAverage(float a, float aW, float b, float bW, float c, float cW) {
-        return a*aW + b*bW + c*cW;
+    private void shadeRun(VertexShader.VertExport verts, int y, int start, int end) {
+        float invZ = verts.invZ0 + start * verts.invZdX + y * verts.invZdY;
+        float UinvZ = verts.UinvZ0 + start * verts.UinvZdX + y * verts.UinvZdY;
+        float VinvZ = verts.VinvZ0 + start * verts.VinvZdX + y * verts.VinvZdY;
+        currentKernel().shadeSpan(target, target.getPixelLocation(start, y), end - start + 1, invZ, UinvZ, VinvZ, verts);
     }
 
-    private void draw(int x, int y, float UinvZ, float VinvZ, float invZ, float lightLevel, UVTexture texture) {
-        int idx = TotallyLegit.getPixelLocation(x, y);
-        if (invZ > TotallyLegit.depth[idx]) {
-            TotallyLegit.setRGBFast(idx, dimARGB(texture.getRGBbyUV(UinvZ/invZ, VinvZ/invZ), lightLevel));
-            TotallyLegit.setDepthFast(idx, invZ);
+    private void testBlock(VertexShader.VertExport verts, int bx, int by, int bxEnd, int byEnd,
+                           long rowE0, long rowE1, long rowE2,
+                           long stepX0, long stepY0, long stepX1, long stepY1, long stepX2, long stepY2) {
+        for (int y = by; y <= byEnd; ++y) {
+            long e0 = rowE0, e1 = rowE1, e2 = rowE2;
+            int x = bx;
+
+            // tris are convex, so each row is one run: skip up to it, then find where we fall out the other side
+            while (x <= bxEnd && (e0 | e1 | e2) < 0) {
+                e0 += stepX0;
+                e1 += stepX1;
+                e2 += stepX2;
+                ++x;
+            }
+
+            int runStart = x;
+            while (x <= bxEnd && (e0 | e1 | e2) >= 0) {
+                e0 += stepX0;
+                e1 += stepX1;
+                e2 += stepX2;
+                ++x;
+            }
+
+            if (x > runStart) {
+                extendRun(verts, y - by, by, runStart, x - 1);
+            }
+
+            rowE0 += stepY0;
+            rowE1 += stepY1;
+            rowE2 += stepY2;
         }
     }
 
@@ -208,6 +367,20 @@ public class PixelShader {
         return (argb & 0xFF000000) | (r << 16) | (g << 8) | b;
     }
 
+    /**
+     * dimARGB with the factor in 1/256ths (so 256 is full brightness). Red and blue get multiplied together in one
+     * int since 255 * 256 + 128 still fits in 16 bits, which is also how the SIMD span kernel does it.
+     */
+    public static int dimARGB(int argb, int factor256) {
+        int rb = (((argb & 0x00FF00FF) * factor256 + 0x00800080) >>> 8) & 0x00FF00FF;
+        int g = (((argb & 0x0000FF00) * factor256 + 0x00008000) >>> 8) & 0x0000FF00;
+        return (argb & 0xFF000000) | rb | g;
+    }
+
+    public static int toFactor256(float factor) {
+        return (int) (factor * 256 + 0.5f);
+    }
+
     class ARGBDimmer {
         private static final int[] MUL_TABLE = new int[256 * 256];
         {
@@ -0,0 +1,57 @@
+package rasterizer;
+
+import world.UVTexture;
+
+/**
+ * One pixel at a time, same as it ever was. Pow2 and compressed levels get their own copies of the loop, picked off
+ * the tri's level instead of checked per pixel.
+ */
+public class ScalarSpanKernel implements SpanKernel {
+    private final UVTexture.BlockCache blockCache = new UVTexture.BlockCache();
+
+    @Override
+    public void shadeSpan(FrameBuffer target, int idx, int count, float invZ, float UinvZ, float VinvZ,
+                          VertexShader.VertExport verts) {
+        float[] depth = target.depth;
+        int[] pixels = target.pixels;
+        int lightLevel = PixelShader.toFactor256(verts.lightLevel);
+        UVTexture.Level texture = verts.level;
+
+        if (texture.isCompressed()) {
+            UVTexture.BlockCache cache = blockCache;
+            for (int end = idx + count; idx < end; ++idx) {
+                if (invZ > depth[idx]) {
+                    pixels[idx] = PixelShader.dimARGB(texture.getRGBbyUV(UinvZ / invZ, VinvZ / invZ, cache), lightLevel);
+                    depth[idx] = invZ;
+                }
+                invZ += verts.invZdX;
+                UinvZ += verts.UinvZdX;
+                VinvZ += verts.VinvZdX;
+            }
+            return;
+        }
+
+        if (texture.pow2) {
+            for (int end = idx + count; idx < end; ++idx) {
+                if (invZ > depth[idx]) {
+                    pixels[idx] = PixelShader.dimARGB(texture.getRGBbyUVPow2(UinvZ / invZ, VinvZ / invZ), lightLevel);
+                    depth[idx] = invZ;
+                }
+                invZ += verts.invZdX;
+                UinvZ += verts.UinvZdX;
+                VinvZ += verts.VinvZdX;
+            }
+            return;
+        }
+
+        for (int end = idx + count; idx < end; ++idx) {
+            if (invZ > depth[idx]) {
+                pixels[idx] = PixelShader.dimARGB(texture.getRGBbyUV(UinvZ / invZ, VinvZ / invZ), lightLevel);
+                depth[idx] = invZ;
+            }
+            invZ += verts.invZdX;
+            UinvZ += verts.UinvZdX;
+            VinvZ += verts.VinvZdX;
+        }
+    }
+}
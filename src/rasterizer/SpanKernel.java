@@ -0,0 +1,28 @@
+package rasterizer;
+
+/**
+ * Shades one horizontal run of pixels that are known to be inside a triangle: depth test, perspective divide,
+ * texel fetch, lighting, write. This is where nearly all of the raster time goes, so it's swappable.
+ * Kernels keep scratch state, so every PixelShader gets its own.
+ */
+public interface SpanKernel {
+    /**
+     * @param idx index into the target of the first (leftmost) pixel
+     * @param count number of pixels, going right
+     * @param invZ attribute values at the first pixel, the x gradients come from verts
+     */
+    void shadeSpan(FrameBuffer target, int idx, int count, float invZ, float UinvZ, float VinvZ,
+                   VertexShader.VertExport verts);
+
+    /**
+     * The SIMD kernel if jdk.incubator.vector is around (run with --add-modules jdk.incubator.vector),
+     * otherwise the plain scalar one. Looked up by name so nothing else has to link against the incubator module.
+     */
+    static SpanKernel create() {
+        try {
+            return (SpanKernel) Class.forName("rasterizer.VectorSpanKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new ScalarSpanKernel();
+        }
+    }
+}
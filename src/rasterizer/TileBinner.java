@@ -0,0 +1,83 @@
+package rasterizer;
+
+import java.util.Arrays;
+
+/**
+ * Screen space tile bins for a single vertex worker.
+ * Every worker bins the triangles it produced into its own binner (so no locking), and the raster
+ * stage then walks the bins of every worker for whatever tile it pulled off the queue.
+ * A 64x64 tile is 16KB of color + 16KB of depth, which comfortably sits in L2 while it's being drawn.
+ */
+public class TileBinner {
+    public static final int TILE_SHIFT = 6;
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private static final int INITIAL_BIN_SIZE = 64;
+
+    private final int X, Y;
+    private final int tilesX, tilesY;
+
+    private final int[][] bins;
+    private final int[] binCounts;
+
+    public TileBinner(int X, int Y) {
+        this.X = X;
+        this.Y = Y;
+        tilesX = (X + TILE_SIZE - 1) >> TILE_SHIFT;
+        tilesY = (Y + TILE_SIZE - 1) >> TILE_SHIFT;
+
+        bins = new int[tilesX * tilesY][INITIAL_BIN_SIZE];
+        binCounts = new int[tilesX * tilesY];
+    }
+
+    public void reset() {
+        Arrays.fill(binCounts, 0);
+    }
+
+    /**
+     * Adds the index of a triangle (in the owning worker's visible list) to every tile its screen
+     * bounding box overlaps.
+     */
+    public void bin(int listIndex, VertexShader.VertExport verts) {
+        int minX = Math.max(0, Math.min(Math.min(verts.aX, verts.bX), verts.cX));
+        int maxX = Math.min(X - 1, Math.max(Math.max(verts.aX, verts.bX), verts.cX));
+        int minY = Math.max(0, Math.min(Math.min(verts.aY, verts.bY), verts.cY));
+        int maxY = Math.min(Y - 1, Math.max(Math.max(verts.aY, verts.bY), verts.cY));
+
+        if (minX > maxX || minY > maxY) {
+            return;
+        }
+
+        int tx0 = minX >> TILE_SHIFT, tx1 = maxX >> TILE_SHIFT;
+        int ty0 = minY >> TILE_SHIFT, ty1 = maxY >> TILE_SHIFT;
+
+        for (int ty = ty0; ty <= ty1; ++ty) {
+            for (int tx = tx0; tx <= tx1; ++tx) {
+                int tile = ty * tilesX + tx;
+                int count = binCounts[tile];
+                if (count == bins[tile].length) {
+                    int[] grown = new int[count * 2];
+                    System.arraycopy(bins[tile], 0, grown, 0, count);
+                    bins[tile] = grown;
+                }
+                bins[tile][count] = listIndex;
+                binCounts[tile] = count + 1;
+            }
+        }
+    }
+
+    public int[] getBin(int tile) {
+        return bins[tile];
+    }
+
+    public int getBinCount(int tile) {
+        return binCounts[tile];
+    }
+
+    public int getTileCount() {
+        return tilesX * tilesY;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+}
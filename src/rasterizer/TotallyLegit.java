@@ -8,17 +8,18 @@ import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.lang.reflect.Field;
-import java.util.Arrays;
 
 /**
  * StdDraw does not let me access the BufferedImage, so I pull it out with reflections
  * for go much fast!
+ * This is only the presenter now: the actual render target is a FrameBuffer that wraps the ripped out
+ * image array, so the pipeline itself doesn't care whether there's a window or not.
 **/
 public class TotallyLegit {
+    public static FrameBuffer frameBuffer;
     public static int[] pixels;
     public static float[] depth;
     public static int width, height;
-    public static int clearColor;
 
     public static BufferedImage image;
     public static Graphics2D graphics;
@@ -34,12 +35,11 @@ public class TotallyLegit {
             bufImg.setAccessible(true);
             image = (BufferedImage) bufImg.get(null);
 
-            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
-            depth = new float[pixels.length];
-            Arrays.fill(depth, Integer.MAX_VALUE);
             width = image.getWidth();
             height = image.getHeight();
-            clearColor = argb(255, 255, 255, 255);
+            frameBuffer = new FrameBuffer(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), width, height);
+            pixels = frameBuffer.pixels;
+            depth = frameBuffer.depth;
 
             Field graphik = StdDraw.class.getDeclaredField("offscreen");
             graphik.setAccessible(true);
@@ -73,7 +73,7 @@ public class TotallyLegit {
     }
 
     public static void setRGB(int x, int y, int argb) {
-         pixels[getPixelLocation(x, y)] = argb;
+        frameBuffer.setRGB(x, y, argb);
     }
 
     /**
@@ -84,7 +84,7 @@ public class TotallyLegit {
     }
 
     public static void setDepth(int x, int y, float z) {
-        depth[getPixelLocation(x, y)] = z;
+        frameBuffer.setDepth(x, y, z);
     }
 
     /**
@@ -95,15 +95,14 @@ public class TotallyLegit {
     }
 
     public static float getDepth(int x, int y) {
-        return depth[getPixelLocation(x, y)];
+        return frameBuffer.getDepth(x, y);
     }
 
     /*
     Yes, seriously.
      */
     public static void clear() {
-        Arrays.fill(depth, Integer.MIN_VALUE);
-        Arrays.fill(pixels, clearColor);
+        frameBuffer.clear();
     }
 
     /*
@@ -116,45 +115,25 @@ public class TotallyLegit {
         bufferStrategy.show();
     }
 
+    /**
+     * Presents some other render target. If it isn't the one wrapping our image, it gets copied in first.
+     */
+    public static void show(FrameBuffer source) {
+        if (source.pixels != pixels) {
+            System.arraycopy(source.pixels, 0, pixels, 0, Math.min(source.pixels.length, pixels.length));
+        }
+        show();
+    }
+
     public static int getPixelLocation(int x, int y) {
         return (height-y-1) * width + x;
     }
 
     public static int argb(int a, int r, int g, int b) {
-       return (a << 24) | (r << 16) | (g << 8) | b;
+       return FrameBuffer.argb(a, r, g, b);
     }
 
     public static void drawLine(int x0, int y0, int x1, int y1, int color) {
-        int dx = Math.abs(x1 - x0);
-        int dy = Math.abs(y1 - y0);
-        int sx = x0 < x1 ? 1 : -1;
-        int sy = y0 < y1 ? 1 : -1;
-        int err = dx - dy;
-
-        int[] pixels = TotallyLegit.pixels;
-        int width = TotallyLegit.width;
-
-        if (x0 < 0 || x0 >= width || y0 < 0 || y0 >= height ||
-                x1 < 0 || x1 >= width || y1 < 0 || y1 >= height) {
-            // do stuff
-        }
-
-        while (true) {
-            if (x0 >= 0 && x0 < width && y0 >= 0 && y0 < height) {
-                setRGB(x0, y0, color);
-            }
-
-            if (x0 == x1 && y0 == y1) break;
-
-            int e2 = err * 2;
-            if (e2 > -dy) {
-                err -= dy;
-                x0 += sx;
-            }
-            if (e2 < dx) {
-                err += dx;
-                y0 += sy;
-            }
-        }
+        frameBuffer.drawLine(x0, y0, x1, y1, color);
     }
-}
\ No newline at end of file
+}
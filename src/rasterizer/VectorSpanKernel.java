@@ -0,0 +1,147 @@
+package rasterizer;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import world.UVTexture;
+
+/**
+ * SIMD span kernel on the incubating Vector API: as many pixels per step as the machine's preferred vector
+ * width has floats (8 on AVX2, 16 on AVX-512). Depth test, divide, texel gather and the dimming all happen
+ * lane-wise, and only lanes that passed the depth test get written. The ragged end of a span is just a masked
+ * step, which beats dropping to scalar even for spans of a handful of pixels. Compressed textures are the
+ * exception, those get the scalar kernel.
+ * Don't construct this directly, SpanKernel.create() falls back to ScalarSpanKernel when the module is missing.
+ */
+public class VectorSpanKernel implements SpanKernel {
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = FLOATS.withLanes(int.class);
+    private static final int LANES = FLOATS.length();
+    private static final FloatVector LANE_OFFSETS = laneOffsets();
+
+    private final int[] texelIndices = new int[LANES];
+    // Compressed levels go through here, and so do spans whose texel coordinates are too big for wrap. Decoding
+    // blocks is scalar work whichever way it's sliced, and doing either per lane in the loop below would cost the
+    // uncompressed path its inlining (see the dimming comment).
+    private final ScalarSpanKernel scalarKernel = new ScalarSpanKernel();
+    // wrap is only good while texel coordinates are below this, see there
+    private static final float WRAP_LIMIT = 1 << 24;
+
+    private static FloatVector laneOffsets() {
+        float[] offsets = new float[LANES];
+        for (int i = 0; i < LANES; ++i) {
+            offsets[i] = i;
+        }
+        return FloatVector.fromArray(FLOATS, offsets, 0);
+    }
+
+    @Override
+    public void shadeSpan(FrameBuffer target, int idx, int count, float invZ, float UinvZ, float VinvZ,
+                          VertexShader.VertExport verts) {
+        float[] depth = target.depth;
+        int[] pixels = target.pixels;
+
+        UVTexture.Level texture = verts.level;
+        if (texture.isCompressed()
+                || !texture.pow2 && !fitsWrap(count, invZ, UinvZ, VinvZ, verts, texture.width, texture.height)) {
+            scalarKernel.shadeSpan(target, idx, count, invZ, UinvZ, VinvZ, verts);
+            return;
+        }
+        int[] texels = texture.texels;
+        int texWidth = texture.width;
+        int texHeight = texture.height;
+        int tilesX = texture.tilesX;
+        boolean pow2 = texture.pow2;
+        float texWidthF = texWidth, texHeightF = texHeight;
+        int lightLevel = PixelShader.toFactor256(verts.lightLevel);
+
+        FloatVector invZSteps = LANE_OFFSETS.mul(verts.invZdX);
+        FloatVector UinvZSteps = LANE_OFFSETS.mul(verts.UinvZdX);
+        FloatVector VinvZSteps = LANE_OFFSETS.mul(verts.VinvZdX);
+
+        for (int i = 0; i < count; i += LANES) {
+            int at = idx + i;
+            FloatVector z = invZSteps.add(invZ + i * verts.invZdX);
+
+            // the last step usually hangs off the end of the span, those lanes are masked off everywhere
+            VectorMask<Float> inSpan = FLOATS.indexInRange(i, count);
+            VectorMask<Float> pass = z.compare(VectorOperators.GT, FloatVector.fromArray(FLOATS, depth, at, inSpan), inSpan);
+            if (!pass.anyTrue()) {
+                continue;
+            }
+
+            FloatVector u = UinvZSteps.add(UinvZ + i * verts.UinvZdX).div(z);
+            FloatVector v = VinvZSteps.add(VinvZ + i * verts.VinvZdX).div(z);
+
+            // Same math as UVTexture.Level.getRGBbyUV(Pow2), lane by lane. pow2 is the same for the whole tri,
+            // so this branch is free next to the wrap it skips.
+            IntVector tx = (IntVector) u.mul(texWidthF).add(0.5f).convert(VectorOperators.F2I, 0);
+            IntVector ty = (IntVector) v.neg().add(1.0f).mul(texHeightF).add(0.5f).convert(VectorOperators.F2I, 0);
+            if (pow2) {
+                tx = tx.and(texture.maskX);
+                ty = ty.and(texture.maskY);
+            } else {
+                tx = wrap(tx, texWidth);
+                ty = wrap(ty, texHeight);
+            }
+            // and UVTexture.Level.texelIndex
+            ty.lanewise(VectorOperators.ASHR, 2).mul(tilesX).add(tx.lanewise(VectorOperators.ASHR, 2))
+                    .lanewise(VectorOperators.LSHL, 4)
+                    .or(ty.and(3).lanewise(VectorOperators.LSHL, 2))
+                    .or(tx.and(3))
+                    .intoArray(texelIndices, 0);
+            IntVector texel = IntVector.fromArray(INTS, texels, 0, texelIndices, 0);
+
+            // Same math as PixelShader.dimARGB(int, int). Going through float lanes instead blows C2's inlining
+            // budget and the whole loop falls off a cliff.
+            IntVector rb = texel.and(0x00FF00FF).mul(lightLevel).add(0x00800080)
+                    .lanewise(VectorOperators.LSHR, 8).and(0x00FF00FF);
+            IntVector g = texel.and(0x0000FF00).mul(lightLevel).add(0x00008000)
+                    .lanewise(VectorOperators.LSHR, 8).and(0x0000FF00);
+            IntVector color = texel.and(0xFF000000).or(rb).or(g);
+
+            color.intoArray(pixels, at, pass.cast(INTS));
+            z.intoArray(depth, at, pass);
+        }
+    }
+
+    /**
+     * Whether every lane of every step over this span (including the ones the last step hangs past the end with,
+     * which get gathered too) has texel coordinates wrap can handle. u and v are ratios of two linear functions
+     * along the span, so as long as invZ stays positive they're monotonic and checking both ends is enough.
+     * Checked once per span, anything in the loop itself costs it its inlining.
+     */
+    private static boolean fitsWrap(int count, float invZ, float UinvZ, float VinvZ, VertexShader.VertExport verts,
+                                    float width, float height) {
+        int last = (count + LANES - 1) / LANES * LANES - 1;
+        float lastInvZ = invZ + last * verts.invZdX;
+        if (!(invZ > 0 && lastInvZ > 0)) {
+            return false;
+        }
+        float lastUinvZ = UinvZ + last * verts.UinvZdX, lastVinvZ = VinvZ + last * verts.VinvZdX;
+        // The loop adds its steps up differently so its lanes round a little differently from these, half the
+        // limit leaves plenty of room for that. Written so NaN fails too.
+        float limit = WRAP_LIMIT / 2;
+        return Math.abs(UinvZ / invZ * width + 0.5f) < limit
+                && Math.abs(lastUinvZ / lastInvZ * width + 0.5f) < limit
+                && Math.abs((1.0f - VinvZ / invZ) * height + 0.5f) < limit
+                && Math.abs((1.0f - lastVinvZ / lastInvZ) * height + 0.5f) < limit;
+    }
+
+    /**
+     * Pulls texel coordinates back into [0, size), which is what getRGBbyUV's % plus the negative fixup ends up
+     * doing. There's no SIMD integer divide, so the quotient comes from a float multiply (truncated, like %).
+     * While |t| < WRAP_LIMIT (2^24, where floats stop holding every int) that's off by at most one either way,
+     * which the two compares fix. Past that (or once F2I saturates) it can be off by a lot and land outside
+     * [0, size), which is why shadeSpan checks fitsWrap first.
+     */
+    private static IntVector wrap(IntVector t, int size) {
+        IntVector quotient = (IntVector) ((FloatVector) t.convert(VectorOperators.I2F, 0))
+                .mul(1.0f / size).convert(VectorOperators.F2I, 0);
+        IntVector rem = t.sub(quotient.mul(size));
+        rem = rem.add(size, rem.compare(VectorOperators.LT, 0));
+        return rem.sub(size, rem.compare(VectorOperators.GE, size));
+    }
+}
@@ -3,8 +3,11 @@ package rasterizer;
 import math.Matrix4;
 import math.Vec4;
 import world.Mesh;
-import world.Tri;
 import world.UVCoord;
+import world.UVTexture;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
 public class VertexShader {
     private int X, Y;
@@ -14,27 +17,85 @@ public class VertexShader {
     private Matrix4 P;
 
     private final Matrix4 VP = new Matrix4();
-    private final Matrix4 MV = new Matrix4();
     private final Matrix4 MVP = new Matrix4();
 
-    private final Vec4 transformBuffer = new Vec4();
-    private final Vec4 edgeBuffer0 = new Vec4();
-    private final Vec4 edgeBuffer1 = new Vec4();
-    private final Vec4 calculationBuffer = new Vec4();
+    private final Vec4 normalBuffer = new Vec4();
+    private static final Vec4 LIGHT_DIR = new Vec4(0, -1, -0.2f, 0);
+
+    static {
+        LIGHT_DIR.normalizeSelf();
+    }
+    private final Vec4 clipA = new Vec4();
+    private final Vec4 clipB = new Vec4();
+    private final Vec4 clipC = new Vec4();
+    private final UVCoord uvA = new UVCoord(0, 0, 0);
+    private final UVCoord uvB = new UVCoord(0, 0, 0);
+    private final UVCoord uvC = new UVCoord(0, 0, 0);
+
+    // Clipping buffers. Clipping ping-pongs between the two, a triangle clipped by 5 planes has at most 8 vertices.
+    private static final int MAX_CLIP_VERTS = 9;
+    private final Vec4[][] clipBuffers = new Vec4[2][MAX_CLIP_VERTS];
+    private final UVCoord[][] uvClipBuffers = new UVCoord[2][MAX_CLIP_VERTS];
+
+    /**
+     * Most triangles a single input triangle can turn into after clipping (8 vertex fan).
+     */
+    public static final int MAX_CLIPPED_TRIS = 6;
+
+    public static final float NEAR_PLANE = 0.01f; // Match camera's zNear
+
+    /**
+     * Width/height in pixels of the guard band. Triangles only get clipped against the sides when they poke out
+     * of this, everything inside just gets scissored by the raster stage. Keeping screen coordinates within
+     * +-16k keeps the integer edge/area math in the raster stage nowhere near overflowing.
+     */
+    private static final float GUARD_BAND_PIXELS = 16384f;
+
+    // Outcode bits. Clip space planes are w >= NEAR, -w <= x <= w, -w <= y <= w (guard band: scaled by guardX/Y).
+    private static final int CLIP_NEAR = 1;
+    private static final int CLIP_LEFT = 2;
+    private static final int CLIP_RIGHT = 4;
+    private static final int CLIP_BOTTOM = 8;
+    private static final int CLIP_TOP = 16;
+    private static final int CLIP_PLANES = 5;
 
-    // Clipping buffers
-    private final Vec4[] clipBuffer = new Vec4[9]; // Max vertices after clipping
-    private final UVCoord[] uvClipBuffer = new UVCoord[9];
+    private float guardX, guardY;
+    private boolean cullSampleless;
+    private boolean mipmapping = true;
 
-    private static final float NEAR_PLANE = 0.01f; // Match camera's zNear
+    /**
+     * Sub-pixel precision of the fixed point vertex positions used by the half-space rasterizer: 4 bits,
+     * so 1/16th of a pixel. With the guard band that keeps coordinates within 2^19 and the edge math in a long.
+     */
+    public static final int SUBPIXEL_BITS = 4;
+    public static final int SUBPIXEL_SCALE = 1 << SUBPIXEL_BITS;
 
     public VertexShader() {
-        for (int i = 0; i < clipBuffer.length; i++) {
-            clipBuffer[i] = new Vec4();
-            uvClipBuffer[i] = new UVCoord(0, 0, 0);
+        for (int b = 0; b < 2; ++b) {
+            for (int i = 0; i < MAX_CLIP_VERTS; i++) {
+                clipBuffers[b][i] = new Vec4();
+                uvClipBuffers[b][i] = new UVCoord(0, 0, 0);
+            }
         }
     }
 
+    /**
+     * Drops tris whose bounding box doesn't hold a single pixel center. Exact for the half-space rasterizer, which
+     * couldn't draw those anyway, so the renderer turns it on for that one. The scanline rasterizer sometimes
+     * still puts a pixel down for them.
+     * Dense meshes (scans) are mostly tris like that, and this keeps them from all taking up a VertExport.
+     */
+    public void setCullSampleless(boolean cullSampleless) {
+        this.cullSampleless = cullSampleless;
+    }
+
+    /**
+     * Whether tris get a mip level from their UV gradients (see mipLevel) or always sample level 0.
+     */
+    public void setMipmapping(boolean mipmapping) {
+        this.mipmapping = mipmapping;
+    }
+
     public void loadCamera(Camera camera) {
         V = camera.getViewMatrix();
         P = camera.getPerspectiveMatrix();
@@ -42,164 +103,421 @@ public class VertexShader {
         P.mul(V, VP);
         X = camera.getResX();
         Y = camera.getResY();
+
+        guardX = Math.max(1.0f, GUARD_BAND_PIXELS / X);
+        guardY = Math.max(1.0f, GUARD_BAND_PIXELS / Y);
     }
 
     public void loadModel(Mesh mesh) {
         M = mesh.getModelMatrix();
         VP.mul(M, MVP);
-        V.mul(M, MV);
     }
 
     /**
-     * Processes a triangle with near plane clipping.
-     * Writes up to two output triangles: primary -> out, secondary (if non-null) -> out2
+     * Post transform vertex cache fill: transforms the unique vertices [start, end) of the loaded mesh by MVP
+     * and writes them into clipOut as packed x, y, z, w starting at vertex slot clipBase. Triangle assembly
+     * (processTri) then reads from there, so a vertex shared by 6 tris still only gets transformed once.
      */
-    public void processTri(Tri tri, VertExport out, VertExport out2) {
-        // Transform to clip space (before perspective divide)
-        Vec4 clipA = new Vec4();
-        Vec4 clipB = new Vec4();
-        Vec4 clipC = new Vec4();
-
-        tri.a.transform(MVP, clipA);
-        tri.b.transform(MVP, clipB);
-        tri.c.transform(MVP, clipC);
-
-        // Compute triangle normal (world/model space) once (used for all generated tris)
-        // This is cheaper than recomputing per-clipped-triangle and preserves correct lighting
-        tri.a.transform(M, edgeBuffer0);
-        tri.b.transform(M, edgeBuffer1);
-        edgeBuffer1.sub(edgeBuffer0, edgeBuffer1); // edgeBuffer1 = b - a
-
-        tri.c.transform(M, calculationBuffer);
-        calculationBuffer.sub(edgeBuffer0, calculationBuffer); // calculationBuffer = c - a
-
-        edgeBuffer1.cross(calculationBuffer, transformBuffer); // transformBuffer = (b-a) x (c-a)
-        transformBuffer.normalizeSelf(); // normalized normal in model/world space
-
-        // compute viewA once (used for view-related shading if needed)
-        tri.a.transform(MV, edgeBuffer0);
-        edgeBuffer0.normalizeSelf();
-
-        // Quick reject: all vertices are behind near
-        if (clipA.w < NEAR_PLANE && clipB.w < NEAR_PLANE && clipC.w < NEAR_PLANE) {
-            out.aInvZ = out.bInvZ = out.cInvZ = -1;
-            if (out2 != null) out2.aInvZ = out2.bInvZ = out2.cInvZ = -1;
-            return;
+    public void transformVertices(Mesh mesh, int start, int end, float[] clipOut, int clipBase) {
+        FloatBuffer positions = mesh.positions;
+        final Matrix4 m = MVP;
+
+        for (int i = start; i < end; ++i) {
+            int p = i * 3;
+            final float x = positions.get(p), y = positions.get(p + 1), z = positions.get(p + 2);
+            int o = (clipBase + i) << 2;
+
+            // w is always 1
+            clipOut[o] = m.m00 * x + m.m01 * y + m.m02 * z + m.m03;
+            clipOut[o + 1] = m.m10 * x + m.m11 * y + m.m12 * z + m.m13;
+            clipOut[o + 2] = m.m20 * x + m.m21 * y + m.m22 * z + m.m23;
+            clipOut[o + 3] = m.m30 * x + m.m31 * y + m.m32 * z + m.m33;
         }
+    }
 
-        // Quick accept: all vertices in front
-        if (clipA.w >= NEAR_PLANE && clipB.w >= NEAR_PLANE && clipC.w >= NEAR_PLANE) {
-            // Process normally without clipping - write into primary
-            processTriNormal(tri, out, clipA, clipB, clipC, transformBuffer, edgeBuffer0);
-            if (out2 != null) {
-                out2.aInvZ = out2.bInvZ = out2.cInvZ = -1; // no second triangle
-            }
-            return;
+    private static void loadClip(float[] clip, int index, Vec4 out) {
+        int o = index << 2;
+        out.x = clip[o];
+        out.y = clip[o + 1];
+        out.z = clip[o + 2];
+        out.w = clip[o + 3];
+    }
+
+    /**
+     * Assembles triangle triIndex of the loaded mesh out of the transformed vertex cache (the mesh's vertices
+     * start at slot clipBase).
+     * Triangles entirely outside one of the frustum planes are rejected straight away. Triangles that cross the
+     * near plane or poke out of the guard band get clipped (Sutherland-Hodgman), anything else goes through
+     * untouched and the raster stage scissors it.
+     * Output triangles are packed into out starting at offset, which needs room for MAX_CLIPPED_TRIS.
+     * Triangles that end up facing away (or degenerate), or entirely off screen are dropped here too so the
+     * raster stage never sees them.
+     * @return how many triangles were written
+     */
+    public int processTri(Mesh mesh, int triIndex, float[] clip, int clipBase, VertExport[] out, int offset) {
+        IntBuffer indices = mesh.indices;
+        int base = triIndex * 3;
+        loadClip(clip, clipBase + indices.get(base), clipA);
+        loadClip(clip, clipBase + indices.get(base + 1), clipB);
+        loadClip(clip, clipBase + indices.get(base + 2), clipC);
+
+        // Quick reject: all vertices outside the same frustum plane
+        if ((frustumOutcode(clipA) & frustumOutcode(clipB) & frustumOutcode(clipC)) != 0) {
+            return 0;
+        }
+
+        // Model space normal is precomputed per face, so getting it into world space is just the rotation
+        // (no translation, it's a direction). Used for all generated tris.
+        FloatBuffer normals = mesh.faceNormals;
+        float nx = normals.get(base), ny = normals.get(base + 1), nz = normals.get(base + 2);
+        normalBuffer.x = M.m00 * nx + M.m01 * ny + M.m02 * nz;
+        normalBuffer.y = M.m10 * nx + M.m11 * ny + M.m12 * nz;
+        normalBuffer.z = M.m20 * nx + M.m21 * ny + M.m22 * nz;
+        normalBuffer.w = 0;
+
+        loadUVs(mesh.uvs, base);
+        int clipPlanes = guardOutcode(clipA) | guardOutcode(clipB) | guardOutcode(clipC);
+
+        // Quick accept: in front of near and inside the guard band
+        if (clipPlanes == 0) {
+            projectTri(clipA, clipB, clipC, uvA, uvB, uvC, mesh, out[offset]);
+            return setupTri(out[offset]) ? 1 : 0;
         }
 
         // Need to clip - use Sutherland-Hodgman (implemented below)
-        int outCount = clipTriangleToNearPlane(clipA, clipB, clipC,
-                tri.aUV, tri.bUV, tri.cUV,
-                clipBuffer, uvClipBuffer);
+        Vec4[] verts = clipBuffers[0];
+        UVCoord[] uvs = uvClipBuffers[0];
+        copyVertex(clipA, uvA, verts[0], uvs[0]);
+        copyVertex(clipB, uvB, verts[1], uvs[1]);
+        copyVertex(clipC, uvC, verts[2], uvs[2]);
+        int outCount = 3;
+        int current = 0;
+
+        for (int plane = 0; plane < CLIP_PLANES && outCount >= 3; ++plane) {
+            if ((clipPlanes & (1 << plane)) == 0) continue;
+
+            outCount = clipPolygonToPlane(1 << plane, clipBuffers[current], uvClipBuffers[current], outCount,
+                    clipBuffers[1 - current], uvClipBuffers[1 - current]);
+            current = 1 - current;
+        }
 
         if (outCount < 3) {
             // Fully clipped
-            out.aInvZ = out.bInvZ = out.cInvZ = -1;
-            if (out2 != null) out2.aInvZ = out2.bInvZ = out2.cInvZ = -1;
-            return;
+            return 0;
         }
 
         // Triangulate fan: (0, i, i+1) for i=1..outCount-2
-        // There can be at most 4 vertices -> at most 2 triangles.
+        verts = clipBuffers[current];
+        uvs = uvClipBuffers[current];
         int written = 0;
-        int totalTris = outCount - 2;
 
         for (int i = 1; i <= outCount - 2; ++i) {
-            Vec4 c0 = clipBuffer[0];
-            Vec4 c1 = clipBuffer[i];
-            Vec4 c2 = clipBuffer[i + 1];
-
-            UVCoord u0 = uvClipBuffer[0];
-            UVCoord u1 = uvClipBuffer[i];
-            UVCoord u2 = uvClipBuffer[i + 1];
-
-            if (written == 0) {
-                processTriClipped(c0, c1, c2, u0, u1, u2, transformBuffer, edgeBuffer0, out);
-            } else if (written == 1 && out2 != null) {
-                processTriClipped(c0, c1, c2, u0, u1, u2, transformBuffer, edgeBuffer0, out2);
+            VertExport target = out[offset + written];
+            projectTri(verts[0], verts[i], verts[i + 1], uvs[0], uvs[i], uvs[i + 1], mesh, target);
+
+            if (setupTri(target)) {
+                written++;
             }
+        }
+
+        return written;
+    }
+
+    /**
+     * Bits set for every real frustum plane the clip space vertex is outside of.
+     */
+    private static int frustumOutcode(Vec4 v) {
+        int code = 0;
+        if (v.w < NEAR_PLANE) code |= CLIP_NEAR;
+        if (v.x < -v.w) code |= CLIP_LEFT;
+        if (v.x > v.w) code |= CLIP_RIGHT;
+        if (v.y < -v.w) code |= CLIP_BOTTOM;
+        if (v.y > v.w) code |= CLIP_TOP;
+        return code;
+    }
+
+    /**
+     * Bits set for the planes the vertex actually needs clipping against: near, and the guard band sides.
+     */
+    private int guardOutcode(Vec4 v) {
+        int code = 0;
+        if (v.w < NEAR_PLANE) code |= CLIP_NEAR;
+        if (v.x < -guardX * v.w) code |= CLIP_LEFT;
+        if (v.x > guardX * v.w) code |= CLIP_RIGHT;
+        if (v.y < -guardY * v.w) code |= CLIP_BOTTOM;
+        if (v.y > guardY * v.w) code |= CLIP_TOP;
+        return code;
+    }
+
+    /**
+     * Signed distance-ish to a clipping plane, >= 0 is inside.
+     */
+    private float planeDistance(int plane, Vec4 v) {
+        switch (plane) {
+            case CLIP_NEAR: return v.w - NEAR_PLANE;
+            case CLIP_LEFT: return guardX * v.w + v.x;
+            case CLIP_RIGHT: return guardX * v.w - v.x;
+            case CLIP_BOTTOM: return guardY * v.w + v.y;
+            default: return guardY * v.w - v.y;
+        }
+    }
+
+    /**
+     * Pulls the corner UVs of the tri whose first corner is at firstCorner out of the mesh's flat uv buffer.
+     */
+    private void loadUVs(FloatBuffer meshUVs, int firstCorner) {
+        if (meshUVs == null) {
+            uvA.u = uvA.v = uvB.u = uvB.v = uvC.u = uvC.v = 0;
+            return;
+        }
+        int o = firstCorner * 2;
+        uvA.u = meshUVs.get(o);
+        uvA.v = meshUVs.get(o + 1);
+        uvB.u = meshUVs.get(o + 2);
+        uvB.v = meshUVs.get(o + 3);
+        uvC.u = meshUVs.get(o + 4);
+        uvC.v = meshUVs.get(o + 5);
+    }
+
+    private static void copyVertex(Vec4 v, UVCoord uv, Vec4 outV, UVCoord outUV) {
+        outV.x = v.x;
+        outV.y = v.y;
+        outV.z = v.z;
+        outV.w = v.w;
+        outUV.u = uv.u;
+        outUV.v = uv.v;
+        outUV.w = uv.w;
+    }
 
-            written++;
-            // If more than two triangles would be generated (shouldn't for near-plane clipping), skip extras
-            if (written >= 2) break;
+    /**
+     * Screen space rejection: anything with non positive area (backfacing or degenerate, the raster stage never
+     * draws those) or a bounding box that misses the screen.
+     * Triangles that survive get their triangle setup done right here, once, instead of in every raster worker
+     * that touches them: sorted vertices and scanline edge slopes, screen space gradients of invZ, U/invZ and
+     * V/invZ, and the light level.
+     * @return false if the triangle should be dropped
+     */
+    private boolean setupTri(VertExport out) {
+        // Winding/area comes from the sub-pixel positions, so thin slivers that round to nothing in whole pixels
+        // still make it to the half-space rasterizer and don't leave cracks.
+        long abFX = out.bFX - out.aFX, abFY = out.bFY - out.aFY;
+        long acFX = out.cFX - out.aFX, acFY = out.cFY - out.aFY;
+        long areaFixed = abFX * acFY - acFX * abFY;
+        if (areaFixed <= 0) return false;
+
+        int minX = Math.min(Math.min(out.aX, out.bX), out.cX);
+        int maxX = Math.max(Math.max(out.aX, out.bX), out.cX);
+        int minY = Math.min(Math.min(out.aY, out.bY), out.cY);
+        int maxY = Math.max(Math.max(out.aY, out.bY), out.cY);
+
+        if (maxX < 0 || minX >= X || maxY < 0 || minY >= Y) return false;
+
+        out.minX = minX;
+        out.maxX = maxX;
+
+        // a has "priority" for being top. if aY = bY, a wins. if aY = cY, a wins.
+        int isAMax = (out.aY >= out.bY && out.aY >= out.cY) ? 1 : 0;
+        int isBMax = (out.bY > out.aY && out.bY > out.cY) ? 1 : 0;
+        int isCMax = 1 - isAMax - isBMax;
+
+        int isAMin = (out.aY <= out.bY && out.aY <= out.cY) ? 1 : 0;
+        int isBMin = (out.bY < out.aY && out.bY < out.cY) ? 1 : 0;
+        int isCMin = 1 - isAMin - isBMin;
+
+        int isAMid = 1 - isAMax - isAMin;
+        int isBMid = 1 - isBMax - isBMin;
+        int isCMid = 1 - isCMax - isCMin;
+
+        int topX = isAMax * out.aX + isBMax * out.bX + isCMax * out.cX;
+        int topY = isAMax * out.aY + isBMax * out.bY + isCMax * out.cY;
+
+        int midX = isAMid * out.aX + isBMid * out.bX + isCMid * out.cX;
+        int midY = isAMid * out.aY + isBMid * out.bY + isCMid * out.cY;
+
+        int bottomX = isAMin * out.aX + isBMin * out.bX + isCMin * out.cX;
+        int bottomY = isAMin * out.aY + isBMin * out.bY + isCMin * out.cY;
+
+        int dx1 = topX - bottomX;
+        int dy1 = topY - bottomY;
+        int dx2 = midX - bottomX;
+        int dy2 = midY - bottomY;
+        int cross = dx1 * dy2 - dy1 * dx2;
+
+        int isMaxLeft = (cross < 0) ? 1 : 0;
+        int isMidLeft = 1 - isMaxLeft;
+
+        int leftX = (isMaxLeft * topX + isMidLeft * midX);
+        int leftY = (isMaxLeft * topY + isMidLeft * midY);
+        int rightX = ((1 - isMaxLeft) * topX + (1 - isMidLeft) * midX);
+        int rightY = ((1 - isMaxLeft) * topY + (1 - isMidLeft) * midY);
+
+        out.minY = bottomY;
+        out.midY = midY;
+        out.maxY = topY;
+
+        // lower segment [minY, midY) starts as a point at the bottom vertex
+        if (bottomY != midY) {
+            out.lowerSlopeLeft = (float) (bottomX - leftX) / (bottomY - leftY);
+            out.lowerSlopeRight = (float) (bottomX - rightX) / (bottomY - rightY);
+            out.midLeftX = bottomX + (midY - bottomY) * out.lowerSlopeLeft;
+            out.midRightX = bottomX + (midY - bottomY) * out.lowerSlopeRight;
+        } else {
+            out.lowerSlopeLeft = out.lowerSlopeRight = 0;
+            out.midLeftX = Math.min(bottomX, midX);
+            out.midRightX = Math.max(bottomX, midX);
+        }
+        out.lowerX = bottomX;
+
+        // upper segment [midY, maxY)
+        if (topY != midY) {
+            out.upperSlopeLeft = (topX - out.midLeftX) / (topY - midY);
+            out.upperSlopeRight = (topX - out.midRightX) / (topY - midY);
+        } else {
+            out.upperSlopeLeft = out.upperSlopeRight = 0;
         }
 
-        // If we produced only one triangle, mark the second as invalid
-        if (written == 1 && out2 != null) {
-            out2.aInvZ = out2.bInvZ = out2.cInvZ = -1;
+        // Slivers that collapse to zero area once snapped to whole pixels are the half-space rasterizer's job.
+        // The scanline path never drew them, so give it empty segments.
+        if (cross == 0) {
+            out.midY = out.maxY = out.minY;
         }
+
+        // Attributes are affine in screen space, so each one is a plane: f(x, y) = f0 + dfdx * x + dfdy * y,
+        // with f0 being the value at the center of pixel (0, 0). Worked out from the sub-pixel positions.
+        float invScale = 1.0f / SUBPIXEL_SCALE;
+        float invArea = (float) SUBPIXEL_SCALE * SUBPIXEL_SCALE / areaFixed;
+        float abX = abFX * invScale, abY = abFY * invScale;
+        float acX = acFX * invScale, acY = acFY * invScale;
+        float toOriginX = 0.5f - out.aFX * invScale;
+        float toOriginY = 0.5f - out.aFY * invScale;
+
+        out.invZdX = planeDX(out.aInvZ, out.bInvZ, out.cInvZ, abY, acY, invArea);
+        out.invZdY = planeDY(out.aInvZ, out.bInvZ, out.cInvZ, abX, acX, invArea);
+        out.invZ0 = out.aInvZ + toOriginX * out.invZdX + toOriginY * out.invZdY;
+        out.UinvZdX = planeDX(out.aUinvZ, out.bUinvZ, out.cUinvZ, abY, acY, invArea);
+        out.UinvZdY = planeDY(out.aUinvZ, out.bUinvZ, out.cUinvZ, abX, acX, invArea);
+        out.UinvZ0 = out.aUinvZ + toOriginX * out.UinvZdX + toOriginY * out.UinvZdY;
+        out.VinvZdX = planeDX(out.aVinvZ, out.bVinvZ, out.cVinvZ, abY, acY, invArea);
+        out.VinvZdY = planeDY(out.aVinvZ, out.bVinvZ, out.cVinvZ, abX, acX, invArea);
+        out.VinvZ0 = out.aVinvZ + toOriginX * out.VinvZdX + toOriginY * out.VinvZdY;
+        out.maxInvZ = Math.max(Math.max(out.aInvZ, out.bInvZ), out.cInvZ);
+        out.mipLevel = mipmapping ? mipLevel(out) : 0;
+        out.level = out.texture != null ? out.texture.getLevel(out.mipLevel) : null;
+
+        setupEdges(out);
+        if (cullSampleless && (out.pixelMinX > out.pixelMaxX || out.pixelMinY > out.pixelMaxY)) {
+            return false;
+        }
+
+        float dot = normalBuffer.dot(LIGHT_DIR);
+        dot = out.backfaceCulling ? dot : Math.abs(dot);
+        out.lightLevel = Math.clamp(dot, 0.1f, 1);
+
+        return true;
     }
 
-    private void processTriNormal(Tri tri, VertExport out, Vec4 clipA, Vec4 clipB, Vec4 clipC, Vec4 normalWorld, Vec4 viewA) {
-        // Transform view space for normal calculation
-        tri.a.transform(MV, out.viewA);
-        out.viewA.normalizeSelf();
+    private static float planeDX(float fa, float fb, float fc, float abY, float acY, float invArea) {
+        return ((fb - fa) * acY - (fc - fa) * abY) * invArea;
+    }
 
-        // Perspective divide and convert to screen space
-        float invA = 1.0f / clipA.w;
-        float ndcxA = clipA.x * invA;
-        float ndcyA = clipA.y * invA;
+    private static float planeDY(float fa, float fb, float fc, float abX, float acX, float invArea) {
+        return ((fc - fa) * abX - (fb - fa) * acX) * invArea;
+    }
 
-        out.aX = (int) ((ndcxA + 1f) * 0.5f * X);
-        out.aY = (int) ((ndcyA + 1f) * 0.5f * Y);
-        out.aUinvZ = tri.aUV.u * invA;
-        out.aVinvZ = tri.aUV.v * invA;
-        out.aW = tri.aUV.w;
-        out.aInvZ = invA;
+    /**
+     * Half-space setup. Edge i (a->b, b->c, c->a) gets E(x, y) = A * x + B * y + C over pixel coordinates,
+     * sampled at pixel centers in sub-pixel units, with the interior being E >= 0. C already has the top-left
+     * fill rule baked in (non top-left edges get -1), so pixels exactly on a shared edge belong to exactly one
+     * of the two tris. Also the pixel bounding box of the pixel centers the tri can cover.
+     */
+    private static void setupEdges(VertExport out) {
+        out.edge0A = edgeA(out.aFY, out.bFY);
+        out.edge0B = edgeB(out.aFX, out.bFX);
+        out.edge0C = edgeC(out.aFX, out.aFY, out.bFX, out.bFY);
+        out.edge1A = edgeA(out.bFY, out.cFY);
+        out.edge1B = edgeB(out.bFX, out.cFX);
+        out.edge1C = edgeC(out.bFX, out.bFY, out.cFX, out.cFY);
+        out.edge2A = edgeA(out.cFY, out.aFY);
+        out.edge2B = edgeB(out.cFX, out.aFX);
+        out.edge2C = edgeC(out.cFX, out.cFY, out.aFX, out.aFY);
+
+        int half = SUBPIXEL_SCALE / 2;
+        int minFX = Math.min(Math.min(out.aFX, out.bFX), out.cFX);
+        int maxFX = Math.max(Math.max(out.aFX, out.bFX), out.cFX);
+        int minFY = Math.min(Math.min(out.aFY, out.bFY), out.cFY);
+        int maxFY = Math.max(Math.max(out.aFY, out.bFY), out.cFY);
+        out.pixelMinX = Math.ceilDiv(minFX - half, SUBPIXEL_SCALE);
+        out.pixelMaxX = Math.floorDiv(maxFX - half, SUBPIXEL_SCALE);
+        out.pixelMinY = Math.ceilDiv(minFY - half, SUBPIXEL_SCALE);
+        out.pixelMaxY = Math.floorDiv(maxFY - half, SUBPIXEL_SCALE);
+    }
 
-        float invB = 1.0f / clipB.w;
-        float ndcxB = clipB.x * invB;
-        float ndcyB = clipB.y * invB;
+    private static int edgeA(int y0, int y1) {
+        return -(y1 - y0);
+    }
 
-        out.bX = (int) ((ndcxB + 1f) * 0.5f * X);
-        out.bY = (int) ((ndcyB + 1f) * 0.5f * Y);
-        out.bUinvZ = tri.bUV.u * invB;
-        out.bVinvZ = tri.bUV.v * invB;
-        out.bW = tri.bUV.w;
-        out.bInvZ = invB;
+    private static int edgeB(int x0, int x1) {
+        return x1 - x0;
+    }
 
-        float invC = 1.0f / clipC.w;
-        float ndcxC = clipC.x * invC;
-        float ndcyC = clipC.y * invC;
+    private static long edgeC(int x0, int y0, int x1, int y1) {
+        long a = -(y1 - y0);
+        long b = x1 - x0;
+        int half = SUBPIXEL_SCALE / 2;
+        // E at the center of pixel (0, 0), then per pixel steps are A * SUBPIXEL_SCALE and B * SUBPIXEL_SCALE
+        long c = a * (half - x0) + b * (half - y0);
+        boolean topLeft = a > 0 || (a == 0 && b < 0);
+        return topLeft ? c : c - 1;
+    }
 
-        out.cX = (int) ((ndcxC + 1f) * 0.5f * X);
-        out.cY = (int) ((ndcyC + 1f) * 0.5f * Y);
-        out.cUinvZ = tri.cUV.u * invC;
-        out.cVinvZ = tri.cUV.v * invC;
-        out.cW = tri.cUV.w;
-        out.cInvZ = invC;
+    /**
+     * Mip level for the whole tri, from how many texels one pixel step covers at its centroid. With u = U/Z' and
+     * Z' = invZ, du/dx = (dU/dx - u * dZ'/dx) / Z', all of which the attribute planes already have.
+     * The level is log2 of the longer of the x and y steps (in level 0 texels), rounded to nearest. Picking it
+     * per tri instead of per pixel means a big tri running off into the distance gets one level that's a
+     * compromise for all of it.
+     */
+    private static int mipLevel(VertExport out) {
+        UVTexture texture = out.texture;
+        if (texture == null || texture.getLevelCount() == 1) {
+            return 0;
+        }
 
-        // Use precomputed world normal
-        out.norm.x = normalWorld.x;
-        out.norm.y = normalWorld.y;
-        out.norm.z = normalWorld.z;
-        out.norm.w = normalWorld.w;
-        out.norm.normalizeSelf();
+        float invZ = (out.aInvZ + out.bInvZ + out.cInvZ) * (1.0f / 3);
+        float z = 1.0f / invZ;
+        float u = (out.aUinvZ + out.bUinvZ + out.cUinvZ) * (1.0f / 3) * z;
+        float v = (out.aVinvZ + out.bVinvZ + out.cVinvZ) * (1.0f / 3) * z;
+        float width = texture.getWidth(), height = texture.getHeight();
+
+        float dudx = (out.UinvZdX - u * out.invZdX) * z * width;
+        float dvdx = (out.VinvZdX - v * out.invZdX) * z * height;
+        float dudy = (out.UinvZdY - u * out.invZdY) * z * width;
+        float dvdy = (out.VinvZdY - v * out.invZdY) * z * height;
+        float stepSquared = Math.max(dudx * dudx + dvdx * dvdx, dudy * dudy + dvdy * dvdy);
+
+        // round(log2(sqrt(s))) = floor(log2(2 * s) / 2), and the float exponent is floor(log2) for free.
+        // Magnified (< 1 texel per pixel) ends up negative, inf/NaN ends up huge, the clamps handle both.
+        int level = Math.getExponent(stepSquared * 2.0f) >> 1;
+        return Math.max(0, Math.min(level, texture.getLevelCount() - 1));
     }
 
-    private void processTriClipped(Vec4 clipA, Vec4 clipB, Vec4 clipC,
-                                   UVCoord uvA, UVCoord uvB, UVCoord uvC,
-                                   Vec4 normalWorld, Vec4 viewA, VertExport out) {
-        // We can't recompute a proper per-triangle 'viewA' from clipped points cheaply, so reuse the provided viewA
-        out.viewA.x = viewA.x; out.viewA.y = viewA.y; out.viewA.z = viewA.z; out.viewA.w = viewA.w;
+    private void projectTri(Vec4 clipA, Vec4 clipB, Vec4 clipC,
+                            UVCoord uvA, UVCoord uvB, UVCoord uvC,
+                            Mesh mesh, VertExport out) {
+        out.texture = mesh.texture;
+        out.backfaceCulling = mesh.backfaceCulling;
 
         // Perspective divide and convert to screen space
         float invA = 1.0f / clipA.w;
         float ndcxA = clipA.x * invA;
         float ndcyA = clipA.y * invA;
 
-        out.aX = (int) ((ndcxA + 1f) * 0.5f * X);
-        out.aY = (int) ((ndcyA + 1f) * 0.5f * Y);
+        float sxA = (ndcxA + 1f) * 0.5f * X;
+        float syA = (ndcyA + 1f) * 0.5f * Y;
+        out.aX = (int) sxA;
+        out.aY = (int) syA;
+        out.aFX = Math.round(sxA * SUBPIXEL_SCALE);
+        out.aFY = Math.round(syA * SUBPIXEL_SCALE);
         out.aUinvZ = uvA.u * invA;
         out.aVinvZ = uvA.v * invA;
         out.aW = uvA.w;
@@ -209,8 +527,12 @@ public class VertexShader {
         float ndcxB = clipB.x * invB;
         float ndcyB = clipB.y * invB;
 
-        out.bX = (int) ((ndcxB + 1f) * 0.5f * X);
-        out.bY = (int) ((ndcyB + 1f) * 0.5f * Y);
+        float sxB = (ndcxB + 1f) * 0.5f * X;
+        float syB = (ndcyB + 1f) * 0.5f * Y;
+        out.bX = (int) sxB;
+        out.bY = (int) syB;
+        out.bFX = Math.round(sxB * SUBPIXEL_SCALE);
+        out.bFY = Math.round(syB * SUBPIXEL_SCALE);
         out.bUinvZ = uvB.u * invB;
         out.bVinvZ = uvB.v * invB;
         out.bW = uvB.w;
@@ -220,64 +542,51 @@ public class VertexShader {
         float ndcxC = clipC.x * invC;
         float ndcyC = clipC.y * invC;
 
-        out.cX = (int) ((ndcxC + 1f) * 0.5f * X);
-        out.cY = (int) ((ndcyC + 1f) * 0.5f * Y);
+        float sxC = (ndcxC + 1f) * 0.5f * X;
+        float syC = (ndcyC + 1f) * 0.5f * Y;
+        out.cX = (int) sxC;
+        out.cY = (int) syC;
+        out.cFX = Math.round(sxC * SUBPIXEL_SCALE);
+        out.cFY = Math.round(syC * SUBPIXEL_SCALE);
         out.cUinvZ = uvC.u * invC;
         out.cVinvZ = uvC.v * invC;
         out.cW = uvC.w;
         out.cInvZ = invC;
-
-        // Use precomputed world normal
-        out.norm.x = normalWorld.x;
-        out.norm.y = normalWorld.y;
-        out.norm.z = normalWorld.z;
-        out.norm.w = normalWorld.w;
-        out.norm.normalizeSelf();
     }
 
     /**
-     * Clips a triangle against the near plane.
-     * This is a full implementation using Sutherland-Hodgman algorithm.
+     * Clips a convex polygon against a single plane (one step of Sutherland-Hodgman).
      * Writes output vertices into outVerts and outUVs. Returns the vertex count.
      */
-    private int clipTriangleToNearPlane(Vec4 a, Vec4 b, Vec4 c,
-                                        UVCoord uvA, UVCoord uvB, UVCoord uvC,
-                                        Vec4[] outVerts, UVCoord[] outUVs) {
-        // Input polygon
-        Vec4[] input = {a, b, c};
-        UVCoord[] inputUVs = {uvA, uvB, uvC};
-        int inputCount = 3;
-
+    private int clipPolygonToPlane(int plane, Vec4[] input, UVCoord[] inputUVs, int inputCount,
+                                   Vec4[] outVerts, UVCoord[] outUVs) {
         int outputCount = 0;
 
         for (int i = 0; i < inputCount; i++) {
-            Vec4 current = input[i];
-            Vec4 next = input[(i + 1) % inputCount];
+            int next = (i + 1 == inputCount) ? 0 : i + 1;
+            Vec4 currentV = input[i];
+            Vec4 nextV = input[next];
             UVCoord currentUV = inputUVs[i];
-            UVCoord nextUV = inputUVs[(i + 1) % inputCount];
+            UVCoord nextUV = inputUVs[next];
 
-            boolean currentInside = current.w >= NEAR_PLANE;
-            boolean nextInside = next.w >= NEAR_PLANE;
+            float currentDist = planeDistance(plane, currentV);
+            float nextDist = planeDistance(plane, nextV);
+            boolean currentInside = currentDist >= 0;
+            boolean nextInside = nextDist >= 0;
 
             if (currentInside) {
-                outVerts[outputCount].x = current.x;
-                outVerts[outputCount].y = current.y;
-                outVerts[outputCount].z = current.z;
-                outVerts[outputCount].w = current.w;
-                outUVs[outputCount].u = currentUV.u;
-                outUVs[outputCount].v = currentUV.v;
-                outUVs[outputCount].w = currentUV.w;
+                copyVertex(currentV, currentUV, outVerts[outputCount], outUVs[outputCount]);
                 outputCount++;
             }
 
             if (currentInside != nextInside) {
                 // Edge crosses the plane - compute intersection
-                float t = (NEAR_PLANE - current.w) / (next.w - current.w);
+                float t = currentDist / (currentDist - nextDist);
 
-                outVerts[outputCount].x = current.x + t * (next.x - current.x);
-                outVerts[outputCount].y = current.y + t * (next.y - current.y);
-                outVerts[outputCount].z = current.z + t * (next.z - current.z);
-                outVerts[outputCount].w = NEAR_PLANE;
+                outVerts[outputCount].x = currentV.x + t * (nextV.x - currentV.x);
+                outVerts[outputCount].y = currentV.y + t * (nextV.y - currentV.y);
+                outVerts[outputCount].z = currentV.z + t * (nextV.z - currentV.z);
+                outVerts[outputCount].w = plane == CLIP_NEAR ? NEAR_PLANE : currentV.w + t * (nextV.w - currentV.w);
 
                 outUVs[outputCount].u = currentUV.u + t * (nextUV.u - currentUV.u);
                 outUVs[outputCount].v = currentUV.v + t * (nextUV.v - currentUV.v);
@@ -303,17 +612,43 @@ public class VertexShader {
         public float cUinvZ, cVinvZ, cW;
         public float cInvZ;
 
-        public Vec4 norm = new Vec4();
-        public Vec4 viewA = new Vec4();
+        // Render state of the mesh this came from, since one raster pass covers every mesh in the frame
+        public UVTexture texture;
+        public boolean backfaceCulling;
+
+        // Triangle setup, written once by the vertex stage and only ever read by the raster stage.
+        // Bounding box, with minY/midY/maxY being the vertex ys sorted.
+        public int minX, maxX;
+        public int minY, midY, maxY;
+        // Scanline edges: the lower segment [minY, midY) grows out of lowerX, the upper one [midY, maxY)
+        // starts at midLeftX/midRightX.
+        public float lowerX;
+        public float lowerSlopeLeft, lowerSlopeRight;
+        public float midLeftX, midRightX;
+        public float upperSlopeLeft, upperSlopeRight;
+        // Perspective correct attribute planes: value at the center of pixel (0, 0) plus screen space gradients
+        public float invZ0, invZdX, invZdY;
+        public float UinvZ0, UinvZdX, UinvZdY;
+        public float VinvZ0, VinvZdX, VinvZdY;
+        // nearest point of the tri, for hierarchical Z rejection
+        public float maxInvZ;
+        public float lightLevel;
+        // which of texture's mip levels the raster stage samples, and that level, so the samplers can pick
+        // their pow2 fast path off it once per tri
+        public int mipLevel;
+        public UVTexture.Level level;
+
+        // Half-space setup: fixed point positions (SUBPIXEL_BITS of sub-pixel precision), edge functions
+        // and the bounding box of covered pixel centers
+        public int aFX, aFY, bFX, bFY, cFX, cFY;
+        public int edge0A, edge0B, edge1A, edge1B, edge2A, edge2B;
+        public long edge0C, edge1C, edge2C;
+        public int pixelMinX, pixelMaxX, pixelMinY, pixelMaxY;
+
+        // where this export sits in the renderer's visible lists, what the visibility buffer stores per pixel
+        public int visibilityId;
 
         public VertExport() {
-            this(new Vec4(0, 0, 0, 0), new Vec4(0, 0, 0, 0));
-        }
-
-        public VertExport(Vec4 nCross, Vec4 nViewA) {
-            norm = nCross;
-            viewA = nViewA;
-
             aX = 0;
             aY = 0;
             aUinvZ = 0;
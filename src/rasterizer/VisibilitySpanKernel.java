@@ -0,0 +1,24 @@
+package rasterizer;
+
+/**
+ * First half of visibility buffer rendering: depth test, then depth + the tri's id. No texture, no lighting,
+ * those happen once per pixel in PixelShader.resolveVisibility.
+ */
+public class VisibilitySpanKernel implements SpanKernel {
+    @Override
+    public void shadeSpan(FrameBuffer target, int idx, int count, float invZ, float UinvZ, float VinvZ,
+                          VertexShader.VertExport verts) {
+        float[] depth = target.depth;
+        int[] ids = target.triIds;
+        int id = verts.visibilityId;
+        float invZdX = verts.invZdX;
+
+        for (int end = idx + count; idx < end; ++idx) {
+            if (invZ > depth[idx]) {
+                depth[idx] = invZ;
+                ids[idx] = id;
+            }
+            invZ += invZdX;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package world;
+
+/**
+ * BC1 (aka DXT1) for 4x4 blocks of texels, packed into a long: color0 in bits 0-15, color1 in 16-31 (both
+ * RGB565), then a 2 bit palette index per texel from bit 32 up, texel (x, y) of the block at 32 + 2 * (y * 4 + x).
+ * The palette is color0, color1, 2/3 color0 + 1/3 color1 and 1/3 color0 + 2/3 color1.
+ * Always the four color mode (color0 > color1), so alpha comes back as 0xFF no matter what went in.
+ */
+final class BC1 {
+    // how much of color0 each palette entry is
+    private static final float[] WEIGHTS = {1, 0, 2 / 3f, 1 / 3f};
+
+    private BC1() {
+    }
+
+    /**
+     * @param texels 16 ARGB texels, row major
+     */
+    static long encode(int[] texels) {
+        // Range fit: the endpoints are the two texels furthest apart along the block's principal axis, which
+        // follows the way the colors actually spread instead of the bounding box diagonal.
+        float meanR = 0, meanG = 0, meanB = 0;
+        for (int t : texels) {
+            meanR += (t >> 16) & 0xFF;
+            meanG += (t >> 8) & 0xFF;
+            meanB += t & 0xFF;
+        }
+        meanR /= 16;
+        meanG /= 16;
+        meanB /= 16;
+
+        float rr = 0, rg = 0, rb = 0, gg = 0, gb = 0, bb = 0;
+        for (int t : texels) {
+            float r = ((t >> 16) & 0xFF) - meanR, g = ((t >> 8) & 0xFF) - meanG, b = (t & 0xFF) - meanB;
+            rr += r * r;
+            rg += r * g;
+            rb += r * b;
+            gg += g * g;
+            gb += g * b;
+            bb += b * b;
+        }
+
+        // a few rounds of power iteration is plenty for a 3x3
+        float axisR = 1, axisG = 1, axisB = 1;
+        for (int i = 0; i < 4; ++i) {
+            float r = rr * axisR + rg * axisG + rb * axisB;
+            float g = rg * axisR + gg * axisG + gb * axisB;
+            float b = rb * axisR + gb * axisG + bb * axisB;
+            float max = Math.max(Math.abs(r), Math.max(Math.abs(g), Math.abs(b)));
+            if (max == 0) {
+                // flat block, any axis does
+                break;
+            }
+            axisR = r / max;
+            axisG = g / max;
+            axisB = b / max;
+        }
+
+        int minTexel = texels[0], maxTexel = texels[0];
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (int t : texels) {
+            float along = ((t >> 16) & 0xFF) * axisR + ((t >> 8) & 0xFF) * axisG + (t & 0xFF) * axisB;
+            if (along < min) {
+                min = along;
+                minTexel = t;
+            }
+            if (along > max) {
+                max = along;
+                maxTexel = t;
+            }
+        }
+
+        long block = fit(texels, to565(maxTexel), to565(minTexel));
+
+        // The extremes are only a guess at the best endpoints (one noisy texel drags them off), so solve for the
+        // endpoints that best fit the indices that got picked, and keep whichever comes out closer.
+        // Per channel that's least squares on texel = w0 * color0 + w1 * color1, w0 being 1, 0, 2/3 or 1/3 and
+        // w1 = 1 - w0.
+        float w00 = 0, w01 = 0, w11 = 0;
+        float w0R = 0, w0G = 0, w0B = 0, w1R = 0, w1G = 0, w1B = 0;
+        for (int i = 0; i < 16; ++i) {
+            float w0 = WEIGHTS[(int) (block >>> (32 + 2 * i)) & 3], w1 = 1 - w0;
+            int t = texels[i];
+            int r = (t >> 16) & 0xFF, g = (t >> 8) & 0xFF, b = t & 0xFF;
+            w00 += w0 * w0;
+            w01 += w0 * w1;
+            w11 += w1 * w1;
+            w0R += w0 * r;
+            w0G += w0 * g;
+            w0B += w0 * b;
+            w1R += w1 * r;
+            w1G += w1 * g;
+            w1B += w1 * b;
+        }
+        float det = w00 * w11 - w01 * w01;
+        // all the indices the same (a flat block) leaves nothing to solve
+        if (Math.abs(det) > 1e-6f) {
+            float inv = 1 / det;
+            int color0 = to565(clamp((w0R * w11 - w1R * w01) * inv), clamp((w0G * w11 - w1G * w01) * inv),
+                    clamp((w0B * w11 - w1B * w01) * inv));
+            int color1 = to565(clamp((w1R * w00 - w0R * w01) * inv), clamp((w1G * w00 - w0G * w01) * inv),
+                    clamp((w1B * w00 - w0B * w01) * inv));
+            long refined = fit(texels, color0, color1);
+            if (error(texels, refined) < error(texels, block)) {
+                block = refined;
+            }
+        }
+        return block;
+    }
+
+    /**
+     * The block for these endpoints (in whichever order four color mode needs), with every texel getting its
+     * nearest palette entry.
+     */
+    private static long fit(int[] texels, int color0, int color1) {
+        if (color0 == color1) {
+            // indices all 0, color0 everywhere
+            return color0 | (long) color1 << 16;
+        }
+        if (color0 < color1) {
+            int swap = color0;
+            color0 = color1;
+            color1 = swap;
+        }
+
+        // pick against the palette the decoder will actually build, not the unquantized endpoints
+        int[] palette = new int[4];
+        palette(color0, color1, palette, 0);
+        long indices = 0;
+        for (int i = 0; i < 16; ++i) {
+            int best = 0, bestDistance = Integer.MAX_VALUE;
+            for (int p = 0; p < 4; ++p) {
+                int distance = distance(texels[i], palette[p]);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = p;
+                }
+            }
+            indices |= (long) best << (2 * i);
+        }
+        return color0 | (long) color1 << 16 | indices << 32;
+    }
+
+    private static int error(int[] texels, long block) {
+        int error = 0;
+        for (int i = 0; i < 16; ++i) {
+            error += distance(texels[i], decodeTexel(block, i));
+        }
+        return error;
+    }
+
+    private static int distance(int a, int b) {
+        int dr = ((a >> 16) & 0xFF) - ((b >> 16) & 0xFF);
+        int dg = ((a >> 8) & 0xFF) - ((b >> 8) & 0xFF);
+        int db = (a & 0xFF) - (b & 0xFF);
+        return dr * dr + dg * dg + db * db;
+    }
+
+    private static int clamp(float channel) {
+        return Math.max(0, Math.min(255, Math.round(channel)));
+    }
+
+    /**
+     * The block's 4 palette colors as ARGB, into out starting at offset. Texel i of the block is palette entry
+     * (block >>> (32 + 2 * i)) & 3.
+     */
+    static void decodePalette(long block, int[] out, int offset) {
+        palette((int) block & 0xFFFF, (int) (block >>> 16) & 0xFFFF, out, offset);
+    }
+
+    /**
+     * Just texel i (y * 4 + x) of the block, for one offs that don't have a BlockCache around.
+     */
+    static int decodeTexel(long block, int i) {
+        int color0 = (int) block & 0xFFFF, color1 = (int) (block >>> 16) & 0xFFFF;
+        int index = (int) (block >>> (32 + 2 * i)) & 3;
+        int p0 = expand565(color0), p1 = expand565(color1);
+        return index == 0 ? p0 : index == 1 ? p1 : index == 2 ? mix(p0, p1) : mix(p1, p0);
+    }
+
+    private static void palette(int color0, int color1, int[] out, int offset) {
+        int p0 = expand565(color0), p1 = expand565(color1);
+        out[offset] = p0;
+        out[offset + 1] = p1;
+        out[offset + 2] = mix(p0, p1);
+        out[offset + 3] = mix(p1, p0);
+    }
+
+    /**
+     * Rounds to nearest per channel.
+     */
+    private static int to565(int argb) {
+        return to565((argb >> 16) & 0xFF, (argb >> 8) & 0xFF, argb & 0xFF);
+    }
+
+    private static int to565(int r, int g, int b) {
+        return (r * 31 + 127) / 255 << 11 | (g * 63 + 127) / 255 << 5 | (b * 31 + 127) / 255;
+    }
+
+    /**
+     * Back to opaque ARGB, replicating the top bits into the bottom so 31 comes back as 255 and 0 as 0.
+     */
+    private static int expand565(int c) {
+        int r = (c >> 11) & 31, g = (c >> 5) & 63, b = c & 31;
+        return 0xFF000000 | ((r << 3) | (r >> 2)) << 16 | ((g << 2) | (g >> 4)) << 8 | (b << 3) | (b >> 2);
+    }
+
+    /**
+     * (2a + b) / 3 per channel, rounded.
+     */
+    private static int mix(int a, int b) {
+        int r = (2 * ((a >> 16) & 0xFF) + ((b >> 16) & 0xFF) + 1) / 3;
+        int g = (2 * ((a >> 8) & 0xFF) + ((b >> 8) & 0xFF) + 1) / 3;
+        int bl = (2 * (a & 0xFF) + (b & 0xFF) + 1) / 3;
+        return 0xFF000000 | r << 16 | g << 8 | bl;
+    }
+}
@@ -3,14 +3,40 @@ package world;
 import math.Quaternion;
 import math.Vec4;
 import math.Matrix4;
-import rasterizer.VertexShader;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 
 public class Mesh {
-    public Tri[] tris;
-    public final VertexShader.VertExport[] vertExports;
+    // Flat storage, this is what the pipeline reads. No per vertex or per tri objects, so a big mesh is a handful
+    // of buffers instead of millions of tiny objects scattered over the heap.
+    // Usually these wrap plain arrays, but they can just as well be mapped straight out of a file (see
+    // loaders.MeshFile), which keeps models bigger than the heap off it entirely. Always use absolute get(i),
+    // never the position, the workers share these.
+    // positions: x, y, z of every unique vertex (w is always 1)
+    // indices: 3 per tri into positions
+    // uvs: u, v per tri corner, at (tri * 3 + corner) * 2. Null if the mesh has no UVs, which samples (0, 0).
+    // faceNormals: model space x, y, z per tri
+    public final FloatBuffer positions;
+    public final IntBuffer indices;
+    public final FloatBuffer uvs;
+    public final FloatBuffer faceNormals;
+    public final int vertexCount;
+    public final int triCount;
+
+    // Model space bounds, computed once at load. The sphere is centered on the box.
+    public final Vec4 boundsMin = new Vec4(0, 0, 0, 1);
+    public final Vec4 boundsMax = new Vec4(0, 0, 0, 1);
+    public final Vec4 boundsCenter = new Vec4(0, 0, 0, 1);
+    public float boundsRadius;
     public Object data;
 
     public boolean backfaceCulling = true;
+    // Big, simple meshes that hide a lot (walls, floors, buildings). They get drawn into the occlusion buffer
+    // every frame and everything else is tested against them, see rasterizer.OcclusionCuller.
+    public boolean occluder;
 
     public Vec4 transform;
     public Quaternion rotation;
@@ -21,16 +47,274 @@ public class Mesh {
 
     private final Matrix4 cache = new Matrix4();
 
-    public Mesh(Tri[] tris, UVTexture texture) {
-        this(tris, new Vec4(0, 0, 0, 1), new Quaternion(1, 0, 0, 0), texture);
+    // tri draw orders per view octant, built the first time each one gets asked for
+    private int[][] depthOrders;
+
+    /**
+     * Takes ownership of the arrays, see the fields for the layout.
+     */
+    public Mesh(float[] positions, int[] indices, float[] uvs, UVTexture texture) {
+        this(FloatBuffer.wrap(positions), IntBuffer.wrap(indices), uvs == null ? null : FloatBuffer.wrap(uvs),
+                null, texture);
     }
 
-    public Mesh(Tri[] tris, Vec4 trans, Quaternion rot, UVTexture texture) {
-        this.tris = tris;
+    /**
+     * @param faceNormals null to have them computed (on the heap). Pass them in for meshes that live off it.
+     */
+    public Mesh(FloatBuffer positions, IntBuffer indices, FloatBuffer uvs, FloatBuffer faceNormals, UVTexture texture) {
+        this(positions, indices, uvs, faceNormals, null, texture);
+    }
+
+    /**
+     * @param bounds null to have them computed. Otherwise BOUNDS_FLOATS floats: min x, y, z, max x, y, z, radius
+     *               (see getBounds). Computing them reads every vertex, which a mapped mesh would rather not.
+     */
+    public Mesh(FloatBuffer positions, IntBuffer indices, FloatBuffer uvs, FloatBuffer faceNormals, float[] bounds,
+                UVTexture texture) {
+        this(positions, indices, uvs, faceNormals, bounds, new Vec4(0, 0, 0, 1), new Quaternion(1, 0, 0, 0), texture);
+    }
+
+    public Mesh(FloatBuffer positions, IntBuffer indices, FloatBuffer uvs, FloatBuffer faceNormals, float[] bounds,
+                Vec4 trans, Quaternion rot, UVTexture texture) {
+        if (positions.limit() % 3 != 0 || indices.limit() % 3 != 0) {
+            throw new IllegalArgumentException("positions and indices need to come in threes, got "
+                    + positions.limit() + " and " + indices.limit());
+        }
+        if (uvs != null && uvs.limit() != indices.limit() * 2) {
+            throw new IllegalArgumentException("need one u, v per tri corner: " + indices.limit() * 2
+                    + " floats, got " + uvs.limit());
+        }
+        if (faceNormals != null && faceNormals.limit() != indices.limit()) {
+            throw new IllegalArgumentException("need one x, y, z normal per tri: " + indices.limit()
+                    + " floats, got " + faceNormals.limit());
+        }
+        this.positions = positions;
+        this.indices = indices;
+        this.uvs = uvs;
+        this.vertexCount = positions.limit() / 3;
+        this.triCount = indices.limit() / 3;
         this.transform = trans;
         this.rotation = rot;
-        this.vertExports = new VertexShader.VertExport[tris.length];
         this.texture = texture;
+
+        if (faceNormals == null) {
+            faceNormals = FloatBuffer.allocate(triCount * 3);
+            computeFaceNormals(positions, indices, triCount, faceNormals);
+        }
+        this.faceNormals = faceNormals;
+        if (bounds == null) {
+            computeBounds();
+        } else {
+            setBounds(bounds);
+        }
+    }
+
+    /**
+     * Packs an old style Tri array. Loaders hand out the same Vec4 instance for every use of a vertex, so identity
+     * is enough to weld.
+     */
+    public Mesh(Tri[] tris, UVTexture texture) {
+        this(tris, new Vec4(0, 0, 0, 1), new Quaternion(1, 0, 0, 0), texture);
+    }
+
+    public Mesh(Tri[] tris, Vec4 trans, Quaternion rot, UVTexture texture) {
+        this(new Packed(tris), trans, rot, texture);
+    }
+
+    private Mesh(Packed packed, Vec4 trans, Quaternion rot, UVTexture texture) {
+        this(FloatBuffer.wrap(packed.positions), IntBuffer.wrap(packed.indices), FloatBuffer.wrap(packed.uvs), null,
+                null, trans, rot, texture);
+    }
+
+    /**
+     * Tri[] flattened into the arrays the real constructor wants.
+     */
+    private static final class Packed {
+        final float[] positions;
+        final int[] indices;
+        final float[] uvs;
+
+        Packed(Tri[] tris) {
+            IdentityHashMap<Vec4, Integer> lookup = new IdentityHashMap<>();
+            indices = new int[tris.length * 3];
+            uvs = new float[tris.length * 6];
+            for (int i = 0; i < tris.length; ++i) {
+                Tri tri = tris[i];
+                indices[i * 3] = lookup.computeIfAbsent(tri.a, v -> lookup.size());
+                indices[i * 3 + 1] = lookup.computeIfAbsent(tri.b, v -> lookup.size());
+                indices[i * 3 + 2] = lookup.computeIfAbsent(tri.c, v -> lookup.size());
+
+                int o = i * 6;
+                uvs[o] = tri.aUV.u;
+                uvs[o + 1] = tri.aUV.v;
+                uvs[o + 2] = tri.bUV.u;
+                uvs[o + 3] = tri.bUV.v;
+                uvs[o + 4] = tri.cUV.u;
+                uvs[o + 5] = tri.cUV.v;
+            }
+
+            positions = new float[lookup.size() * 3];
+            lookup.forEach((v, i) -> {
+                positions[i * 3] = v.x;
+                positions[i * 3 + 1] = v.y;
+                positions[i * 3 + 2] = v.z;
+            });
+        }
+    }
+
+    /**
+     * Compatibility view for code that still wants objects: builds a fresh Tri per tri, with one Vec4 per vertex
+     * shared between the tris using it (so handing the result back to the Tri[] constructor welds the same way).
+     * Allocates the lot every call, don't use it per frame.
+     */
+    public Tri[] getTris() {
+        Vec4[] vertices = new Vec4[vertexCount];
+        for (int i = 0; i < vertexCount; ++i) {
+            vertices[i] = new Vec4(positions.get(i * 3), positions.get(i * 3 + 1), positions.get(i * 3 + 2), 1);
+        }
+
+        Tri[] tris = new Tri[triCount];
+        for (int i = 0; i < triCount; ++i) {
+            int o = i * 6;
+            tris[i] = new Tri(
+                    vertices[indices.get(i * 3)], uvs == null ? UVCoord.DUMMY_UV : new UVCoord(uvs.get(o), uvs.get(o + 1), 0),
+                    vertices[indices.get(i * 3 + 1)], uvs == null ? UVCoord.DUMMY_UV : new UVCoord(uvs.get(o + 2), uvs.get(o + 3), 0),
+                    vertices[indices.get(i * 3 + 2)], uvs == null ? UVCoord.DUMMY_UV : new UVCoord(uvs.get(o + 4), uvs.get(o + 5), 0));
+        }
+        return tris;
+    }
+
+    public static final int BOUNDS_FLOATS = 7;
+
+    /**
+     * Writes the bounds in the layout the constructor takes them in.
+     */
+    public void getBounds(float[] out) {
+        out[0] = boundsMin.x;
+        out[1] = boundsMin.y;
+        out[2] = boundsMin.z;
+        out[3] = boundsMax.x;
+        out[4] = boundsMax.y;
+        out[5] = boundsMax.z;
+        out[6] = boundsRadius;
+    }
+
+    private void setBounds(float[] bounds) {
+        boundsMin.x = bounds[0];
+        boundsMin.y = bounds[1];
+        boundsMin.z = bounds[2];
+        boundsMax.x = bounds[3];
+        boundsMax.y = bounds[4];
+        boundsMax.z = bounds[5];
+        boundsRadius = bounds[6];
+        boundsCenter.x = (boundsMin.x + boundsMax.x) * 0.5f;
+        boundsCenter.y = (boundsMin.y + boundsMax.y) * 0.5f;
+        boundsCenter.z = (boundsMin.z + boundsMax.z) * 0.5f;
+    }
+
+    private void computeBounds() {
+        if (vertexCount == 0) {
+            return;
+        }
+
+        boundsMin.x = boundsMin.y = boundsMin.z = Float.POSITIVE_INFINITY;
+        boundsMax.x = boundsMax.y = boundsMax.z = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < positions.limit(); i += 3) {
+            boundsMin.x = Math.min(boundsMin.x, positions.get(i));
+            boundsMin.y = Math.min(boundsMin.y, positions.get(i + 1));
+            boundsMin.z = Math.min(boundsMin.z, positions.get(i + 2));
+            boundsMax.x = Math.max(boundsMax.x, positions.get(i));
+            boundsMax.y = Math.max(boundsMax.y, positions.get(i + 1));
+            boundsMax.z = Math.max(boundsMax.z, positions.get(i + 2));
+        }
+
+        boundsCenter.x = (boundsMin.x + boundsMax.x) * 0.5f;
+        boundsCenter.y = (boundsMin.y + boundsMax.y) * 0.5f;
+        boundsCenter.z = (boundsMin.z + boundsMax.z) * 0.5f;
+
+        float radiusSq = 0;
+        for (int i = 0; i < positions.limit(); i += 3) {
+            float dx = positions.get(i) - boundsCenter.x;
+            float dy = positions.get(i + 1) - boundsCenter.y;
+            float dz = positions.get(i + 2) - boundsCenter.z;
+            radiusSq = Math.max(radiusSq, dx * dx + dy * dy + dz * dz);
+        }
+        boundsRadius = (float) Math.sqrt(radiusSq);
+    }
+
+    /**
+     * Static so it can be used on data that doesn't have a Mesh around it yet (see loaders.MeshFile).
+     */
+    public static void computeFaceNormals(FloatBuffer positions, IntBuffer indices, int triCount, FloatBuffer out) {
+        for (int i = 0; i < triCount; ++i) {
+            int a = indices.get(i * 3) * 3, b = indices.get(i * 3 + 1) * 3, c = indices.get(i * 3 + 2) * 3;
+            float ax = positions.get(a), ay = positions.get(a + 1), az = positions.get(a + 2);
+            float abx = positions.get(b) - ax, aby = positions.get(b + 1) - ay, abz = positions.get(b + 2) - az;
+            float acx = positions.get(c) - ax, acy = positions.get(c + 1) - ay, acz = positions.get(c + 2) - az;
+
+            float nx = aby * acz - abz * acy;
+            float ny = abz * acx - abx * acz;
+            float nz = abx * acy - aby * acx;
+
+            // degenerate tris would normalize into NaNs. They never get drawn anyway, but keep the lighting math sane.
+            float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length > 0) {
+                nx /= length;
+                ny /= length;
+                nz /= length;
+            }
+            out.put(i * 3, nx);
+            out.put(i * 3 + 1, ny);
+            out.put(i * 3 + 2, nz);
+        }
+    }
+
+    /**
+     * Tri indices sorted near to far for anyone looking along a direction in the given octant (model space):
+     * bit 0 set means the direction's x is negative, bit 1 y, bit 2 z. Tris get sorted by their centroid along the
+     * octant's diagonal, which is only exact for that diagonal but near enough for early depth rejects.
+     * Built on first use and kept, so it's meant for static geometry. Call invalidateDepthOrders() after
+     * moving vertices around. Not thread safe, the renderer only calls it from the submitting thread.
+     */
+    public int[] getDepthOrder(int octant) {
+        if (depthOrders == null) {
+            depthOrders = new int[8][];
+        }
+        if (depthOrders[octant] == null) {
+            depthOrders[octant] = buildDepthOrder(octant);
+        }
+        return depthOrders[octant];
+    }
+
+    public void invalidateDepthOrders() {
+        depthOrders = null;
+    }
+
+    private int[] buildDepthOrder(int octant) {
+        float sx = (octant & 1) == 0 ? 1 : -1;
+        float sy = (octant & 2) == 0 ? 1 : -1;
+        float sz = (octant & 4) == 0 ? 1 : -1;
+
+        // key in the high half, tri index in the low half, so a plain long sort does it
+        long[] keys = new long[triCount];
+        for (int i = 0; i < triCount; ++i) {
+            int a = indices.get(i * 3) * 3, b = indices.get(i * 3 + 1) * 3, c = indices.get(i * 3 + 2) * 3;
+            // 3x the centroid, the scale doesn't matter for ordering
+            float d = sx * (positions.get(a) + positions.get(b) + positions.get(c))
+                    + sy * (positions.get(a + 1) + positions.get(b + 1) + positions.get(c + 1))
+                    + sz * (positions.get(a + 2) + positions.get(b + 2) + positions.get(c + 2));
+            int bits = Float.floatToIntBits(d);
+            // flip the magnitude bits of negatives so the ints sort like the floats
+            bits ^= (bits >> 31) & 0x7FFFFFFF;
+            keys[i] = ((long) bits << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[triCount];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = (int) keys[i];
+        }
+        return order;
     }
 
     public Matrix4 getModelMatrix() {
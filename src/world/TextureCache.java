@@ -0,0 +1,281 @@
+package world;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Hands out shared UVTextures and decodes them in the background, so a scene full of meshes using the same few
+ * textures reads and holds each one once, and startup doesn't wait on ImageIO.
+ * <ul>
+ *     <li>acquire() returns straight away. The texture shows PLACEHOLDER until its decode finishes and the next
+ *     update() swaps the real texels in.</li>
+ *     <li>Same path (after normalizing) means same UVTexture. Different paths with byte for byte identical files
+ *     end up sharing one set of texels.</li>
+ *     <li>Textures nobody has acquired anymore stay cached in case someone wants them again, until the texels
+ *     add up to more than the budget. Then the least recently released ones get dropped. Textures in use never
+ *     are, even if they alone are over budget.</li>
+ * </ul>
+ * Everything but the decoding (and building the mip chain, and compressing) happens on the thread calling in,
+ * which has to be the render thread between frames (update() swaps texels that the raster workers read without
+ * locks).
+ */
+public class TextureCache {
+    public static final String BUDGET_PROPERTY = "texture.budget.mb";
+    public static final long DEFAULT_BUDGET_BYTES = 256L << 20;
+    // -Dtexture.compress=true to keep everything as BC1, see UVTexture.compress
+    public static final String COMPRESS_PROPERTY = "texture.compress";
+    // mid grey, so untextured looking meshes still read as lit geometry while the real thing loads
+    private static final int PLACEHOLDER = 0xFF808080;
+
+    private static class Decoded {
+        // SHA-256 of the file, hex
+        String hash;
+        UVTexture.Level[] levels;
+    }
+
+    // one per distinct file content, shared by every path that turned out to have it
+    private static class Texels {
+        final String hash;
+        final UVTexture.Level[] levels;
+        int users;
+
+        Texels(Decoded decoded) {
+            hash = decoded.hash;
+            levels = decoded.levels;
+        }
+
+        long bytes() {
+            long bytes = 0;
+            for (UVTexture.Level level : levels) {
+                bytes += level.isCompressed() ? (long) level.blocks.length * 8 : (long) level.texels.length * 4;
+            }
+            return bytes;
+        }
+    }
+
+    private static class Entry {
+        final String key;
+        final UVTexture texture;
+        int refs;
+        // update() count when refs last hit 0, for picking what to evict
+        long released;
+        // null once it's been installed (or failed)
+        Future<Decoded> pending;
+        Texels texels;
+
+        Entry(String key, UVTexture texture) {
+            this.key = key;
+            this.texture = texture;
+        }
+    }
+
+    private final long budgetBytes;
+    private final boolean compress;
+    private long usedBytes;
+    private long updates;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<UVTexture, Entry> byTexture = new IdentityHashMap<>();
+    private final Map<String, Texels> byContent = new HashMap<>();
+    private final ExecutorService decoders = Executors.newVirtualThreadPerTaskExecutor();
+
+    public TextureCache() {
+        this(Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET_BYTES >> 20) << 20, Boolean.getBoolean(COMPRESS_PROPERTY));
+    }
+
+    public TextureCache(long budgetBytes) {
+        this(budgetBytes, false);
+    }
+
+    /**
+     * @param compress store every texture as BC1 blocks, which fits 8x as many under the same budget
+     */
+    public TextureCache(long budgetBytes, boolean compress) {
+        this.budgetBytes = budgetBytes;
+        this.compress = compress;
+    }
+
+    /**
+     * @return the texture for this file, shared with everyone else who acquired it. Release it when done.
+     */
+    public UVTexture acquire(String path) {
+        String key = normalize(path);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, new UVTexture(placeholder()));
+            Path file = Paths.get(key);
+            entry.pending = decoders.submit(() -> decode(file, compress));
+            entries.put(key, entry);
+            byTexture.put(entry.texture, entry);
+        }
+        ++entry.refs;
+        return entry.texture;
+    }
+
+    public void release(UVTexture texture) {
+        Entry entry = byTexture.get(texture);
+        if (entry != null && entry.refs > 0 && --entry.refs == 0) {
+            entry.released = updates;
+        }
+    }
+
+    /**
+     * Call once per frame, before rendering: installs whatever finished decoding since last time, then evicts
+     * down to the budget.
+     * @return how many textures got their real texels this time
+     */
+    public int update() {
+        ++updates;
+        int installed = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.pending != null && entry.pending.isDone()) {
+                if (install(entry)) {
+                    ++installed;
+                }
+            }
+        }
+        evict();
+        return installed;
+    }
+
+    /**
+     * Blocks until every texture acquired so far has finished decoding, then installs them. For when
+     * placeholder frames aren't acceptable (headless renders, screenshots).
+     */
+    public void finishLoading() {
+        for (Entry entry : entries.values()) {
+            if (entry.pending != null) {
+                install(entry);
+            }
+        }
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public void shutdown() {
+        decoders.shutdownNow();
+    }
+
+    private boolean install(Entry entry) {
+        Future<Decoded> pending = entry.pending;
+        entry.pending = null;
+        Decoded decoded;
+        try {
+            decoded = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // the mesh just keeps the placeholder, better than taking the whole scene down
+            System.err.println("womp womp can't read " + entry.key + ": " + e.getCause());
+            return false;
+        }
+
+        Texels texels = byContent.get(decoded.hash);
+        // SHA-256, so same hash is taken to mean same bytes. A CRC made that a guess, one that could hand a mesh
+        // somebody else's texture.
+        if (texels == null) {
+            texels = new Texels(decoded);
+            byContent.put(texels.hash, texels);
+            usedBytes += texels.bytes();
+        }
+        ++texels.users;
+        entry.texels = texels;
+        entry.texture.setLevels(texels.levels);
+        return true;
+    }
+
+    private void evict() {
+        while (usedBytes > budgetBytes) {
+            Entry oldest = null;
+            for (Entry entry : entries.values()) {
+                if (entry.refs == 0 && entry.texels != null && (oldest == null || entry.released < oldest.released)) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            remove(oldest);
+        }
+
+        // unused and never finished (or failed): nothing to free, but no reason to keep decoding or remembering them
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refs == 0 && entry.texels == null) {
+                if (entry.pending != null) {
+                    entry.pending.cancel(true);
+                }
+                it.remove();
+                byTexture.remove(entry.texture);
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        byTexture.remove(entry.texture);
+        Texels texels = entry.texels;
+        if (--texels.users == 0) {
+            byContent.remove(texels.hash, texels);
+            usedBytes -= texels.bytes();
+        }
+        // in case someone held on to it after releasing, so the texels really can get collected
+        entry.texture.setLevels(placeholder());
+    }
+
+    private static UVTexture.Level[] placeholder() {
+        return new UVTexture.Level[]{new UVTexture.Level(new int[]{PLACEHOLDER}, 1, 1)};
+    }
+
+    private static String normalize(String path) {
+        Path p = Paths.get(path);
+        try {
+            return p.toRealPath().toString();
+        } catch (IOException e) {
+            // doesn't exist (the decode will complain), just clean it up
+            return p.toAbsolutePath().normalize().toString();
+        }
+    }
+
+    private static Decoded decode(Path file, boolean compress) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (image == null) {
+            throw new IOException("not an image ImageIO knows");
+        }
+
+        Decoded decoded = new Decoded();
+        try {
+            decoded.hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("every JVM is supposed to have SHA-256", e);
+        }
+        // the mip chain (and compressing it) gets done out here too, the render thread only ever swaps in
+        // finished levels
+        int width = image.getWidth(), height = image.getHeight();
+        decoded.levels = UVTexture.buildMips(image.getRGB(0, 0, width, height, null, 0, width), width, height);
+        if (compress) {
+            decoded.levels = UVTexture.compress(decoded.levels);
+        }
+        return decoded;
+    }
+}
@@ -6,7 +6,8 @@ import static world.UVCoord.DUMMY_UV;
 
 /**
  * public fields because i think they're faster (unproven but my vibes say yes)
- * Can take out vector class and put into this if later needed for SIMD stuff
+ * Not what the pipeline uses anymore, meshes are flat arrays now (see Mesh). This sticks around as a convenient
+ * way to build small meshes by hand and as what Mesh.getTris() hands out.
  */
 public class Tri {
     public Vec4 a, b, c;
@@ -5,11 +5,192 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 
+/**
+ * A texture plus its mip chain: level 0 is the image, every level after that is half the size (rounded down,
+ * never below 1) box filtered from the one before, down to 1x1. The raster stage picks one level per tri
+ * (VertexShader works it out from the UV gradients) so far away tris sample a texture about their own size
+ * instead of skipping across the full one.
+ * The chain costs a third on top of the image. Compressing (BC1, see compress()) gets the lot down to a sixth of the
+ * plain image.
+ */
 public class UVTexture {
-    private final int[] pixels;
     private BufferedImage image;
-    private int X, Y;
-    private float Xf, Yf;
+    private Level[] levels;
+
+    /**
+     * One mip level, and the samplers for it.
+     * The texels are stored in 4x4 tiles (64 bytes, one cache line each) laid out row major, with row major texels
+     * inside each tile. A span that walks the texture at any angle other than along its rows touches a quarter of the
+     * cache lines it used to, and a minified one stepping a few texels per pixel stays in the same lines for
+     * longer. Sides that aren't a multiple of 4 get padded out to whole tiles, which nothing ever samples.
+     * A compressed level (see compress()) keeps each tile as one BC1 block instead, 8 bytes where the ints took 64.
+     */
+    public static final class Level {
+        /**
+         * 4x4 tiles of ARGB, see texelIndex. Null if compressed. For samplers that do their own addressing, don't
+         * write to it.
+         */
+        public final int[] texels;
+        /** One BC1 block per tile, in the same order as the tiles. Null unless compressed. */
+        public final long[] blocks;
+        public final int width, height;
+        public final int tilesX;
+        /** Both sides are powers of two, so getRGBbyUVPow2 can be used (and wraps with masks instead of %). */
+        public final boolean pow2;
+        public final int maskX, maskY;
+        private final float widthF, heightF;
+
+        /**
+         * @param pixels row major ARGB with row 0 at the top. Copied into tiles, so it's free to go afterwards.
+         */
+        public Level(int[] pixels, int width, int height) {
+            this(width, height, new int[((width + 3) >> 2) * ((height + 3) >> 2) * 16], null);
+            for (int y = 0; y < height; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    texels[texelIndex(x, y, tilesX)] = pixels[y * width + x];
+                }
+            }
+        }
+
+        private Level(int width, int height, int[] texels, long[] blocks) {
+            this.width = width;
+            this.height = height;
+            this.texels = texels;
+            this.blocks = blocks;
+            widthF = width;
+            heightF = height;
+            tilesX = (width + 3) >> 2;
+            pow2 = Integer.bitCount(width) == 1 && Integer.bitCount(height) == 1;
+            maskX = width - 1;
+            maskY = height - 1;
+        }
+
+        /**
+         * Where texel (x, y) lives in texels, for 0 <= x < width and 0 <= y < height.
+         */
+        public static int texelIndex(int x, int y, int tilesX) {
+            return (((y >> 2) * tilesX + (x >> 2)) << 4) | ((y & 3) << 2) | (x & 3);
+        }
+
+        public boolean isCompressed() {
+            return blocks != null;
+        }
+
+        /**
+         * This level as BC1 blocks, for an 8th of the memory and bandwidth. Edge tiles that hang off the texture
+         * get encoded from the texels that are really there, repeated, so the padding doesn't pull the colors off.
+         */
+        public Level compress() {
+            if (blocks != null) {
+                return this;
+            }
+            long[] out = new long[texels.length >> 4];
+            int[] block = new int[16];
+            for (int by = 0; by < height; by += 4) {
+                for (int bx = 0; bx < width; bx += 4) {
+                    for (int i = 0; i < 16; ++i) {
+                        block[i] = getRGB(Math.min(bx + (i & 3), width - 1), Math.min(by + (i >> 2), height - 1));
+                    }
+                    out[(by >> 2) * tilesX + (bx >> 2)] = BC1.encode(block);
+                }
+            }
+            return new Level(width, height, null, out);
+        }
+
+        /**
+         * Any level, compressed or not. Slow for compressed ones (decodes just the one texel every time), so
+         * samplers should use the getRGBbyUV variants.
+         */
+        public int getRGB(int x, int y) {
+            if (blocks != null) {
+                return BC1.decodeTexel(blocks[(y >> 2) * tilesX + (x >> 2)], ((y & 3) << 2) | (x & 3));
+            }
+            return texels[texelIndex(x, y, tilesX)];
+        }
+
+        /**
+         * Works for any size, uncompressed only. Picking between this, getRGBbyUVPow2 and the compressed one is
+         * left to the caller so it can happen once per tri instead of once per texel.
+         */
+        public int getRGBbyUV(float u, float v) {
+            int tx = wrap((int)(u * widthF + 0.5f), width);
+            int ty = wrap((int)((1.0f - v) * heightF + 0.5f), height);
+            return texels[texelIndex(tx, ty, tilesX)];
+        }
+
+        /**
+         * Same texel getRGBbyUV would give, only for uncompressed pow2 levels. In two's complement a mask is
+         * exactly % plus the negative fixup, minus the divide and the branches.
+         */
+        public int getRGBbyUVPow2(float u, float v) {
+            int tx = (int)(u * widthF + 0.5f) & maskX;
+            int ty = (int)((1.0f - v) * heightF + 0.5f) & maskY;
+            return texels[texelIndex(tx, ty, tilesX)];
+        }
+
+        /**
+         * The compressed sampler, any size. Same texel addressing as the others.
+         */
+        public int getRGBbyUV(float u, float v, BlockCache cache) {
+            int tx = (int)(u * widthF + 0.5f);
+            int ty = (int)((1.0f - v) * heightF + 0.5f);
+            if (pow2) {
+                tx &= maskX;
+                ty &= maskY;
+            } else {
+                tx = wrap(tx, width);
+                ty = wrap(ty, height);
+            }
+            return getRGB(tx, ty, cache);
+        }
+
+        /**
+         * Texel (x, y) of a compressed level, decoding its block into the cache first if it isn't there yet.
+         */
+        public int getRGB(int x, int y, BlockCache cache) {
+            int bx = x >> 2, by = y >> 2;
+            int block = by * tilesX + bx;
+            int slot = (bx & (BlockCache.SLOTS_X - 1)) | (by & (BlockCache.SLOTS_Y - 1)) * BlockCache.SLOTS_X;
+            if (cache.owners[slot] != blocks || cache.ids[slot] != block) {
+                long bits = blocks[block];
+                BC1.decodePalette(bits, cache.palettes, slot << 2);
+                cache.indices[slot] = (int) (bits >>> 32);
+                cache.owners[slot] = blocks;
+                cache.ids[slot] = block;
+            }
+            int index = (cache.indices[slot] >>> ((((y & 3) << 2) | (x & 3)) << 1)) & 3;
+            return cache.palettes[(slot << 2) | index];
+        }
+
+        /**
+         * What % plus the negative fixup does, skipping the divide when t is already in [0, size) (most UVs are
+         * in [0, 1]).
+         */
+        private static int wrap(int t, int size) {
+            if (t < 0 || t >= size) {
+                t %= size;
+                if (t < 0) t += size;
+            }
+            return t;
+        }
+    }
+
+    /**
+     * The last few BC1 blocks a sampler decoded, so the texels of one block (4 along a span at 1 texel per pixel,
+     * and as many as it likes magnified) share one decode. Decoded means the palette worked out as ARGB plus the
+     * indices, so a hit is two loads and a shift. Direct mapped by block position, 16 across by 8 down: a span
+     * across a whole 64 pixel raster tile fits, and the spans under it find their blocks still there. About 3KB,
+     * sits in L1.
+     * Not thread safe at all: every raster thread needs its own (the span kernels and PixelShader each keep one).
+     */
+    public static final class BlockCache {
+        static final int SLOTS_X = 16, SLOTS_Y = 8;
+        // whose blocks each slot holds. Keeps them reachable until overwritten, but that's 128 arrays at most.
+        final long[][] owners = new long[SLOTS_X * SLOTS_Y][];
+        final int[] ids = new int[SLOTS_X * SLOTS_Y];
+        final int[] palettes = new int[SLOTS_X * SLOTS_Y * 4];
+        final int[] indices = new int[SLOTS_X * SLOTS_Y];
+    }
 
     public UVTexture(String filePath) {
         try {
@@ -21,18 +202,133 @@ public class UVTexture {
             throw new RuntimeException();
         }
 
-        X = image.getWidth();
-        Xf = (float) X;
-        Y = image.getHeight();
-        Yf = (float) Y;
-        pixels = image.getRGB(0, 0, X, Y, null, 0, X);
+        levels = buildMips(image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()),
+                image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * @param pixels row major ARGB, row 0 at the top. Level 0 gets tiled from it, see Level.
+     */
+    public UVTexture(int[] pixels, int width, int height) {
+        levels = buildMips(pixels, width, height);
+    }
+
+    UVTexture(Level[] levels) {
+        this.levels = levels;
+    }
+
+    /**
+     * Swaps what the texture shows (TextureCache does this when a decode finishes). Samplers read these fields
+     * mid frame without any locking, so only ever call it between frames on the thread that renders.
+     */
+    void setLevels(Level[] levels) {
+        this.levels = levels;
+    }
+
+    /**
+     * Level 0 plus every halving of it down to 1x1.
+     */
+    public static Level[] buildMips(int[] pixels, int width, int height) {
+        int count = 1;
+        for (int w = width, h = height; w > 1 || h > 1; w = Math.max(1, w >> 1), h = Math.max(1, h >> 1)) {
+            ++count;
+        }
+
+        Level[] levels = new Level[count];
+        levels[0] = new Level(pixels, width, height);
+        for (int i = 1; i < count; ++i) {
+            levels[i] = halve(levels[i - 1]);
+        }
+        return levels;
     }
 
+    /**
+     * Every level as BC1 (see Level.compress): an 8th of the memory, for a bit of color banding in busy blocks and
+     * no alpha. The chain has to be built first, the box filter wants the real texels.
+     */
+    public static Level[] compress(Level[] levels) {
+        Level[] out = new Level[levels.length];
+        for (int i = 0; i < levels.length; ++i) {
+            out[i] = levels[i].compress();
+        }
+        return out;
+    }
+
+    /**
+     * Swaps this texture's levels for compressed ones. Same rules as setLevels: between frames, on the thread that
+     * renders.
+     */
+    public void compress() {
+        setLevels(compress(levels));
+    }
+
+    /**
+     * Each texel is the rounded average of the 2x2 block under it, per channel. An odd last row/column just gets
+     * dropped, and a side that's already 1 averages with itself.
+     */
+    private static Level halve(Level src) {
+        int width = Math.max(1, src.width >> 1);
+        int height = Math.max(1, src.height >> 1);
+        int[] out = new int[width * height];
+        int dx = src.width > 1 ? 1 : 0;
+        int dy = src.height > 1 ? 1 : 0;
+
+        for (int y = 0; y < height; ++y) {
+            int sy = y * 2;
+            for (int x = 0; x < width; ++x) {
+                int sx = x * 2;
+                int p0 = src.getRGB(sx, sy), p1 = src.getRGB(sx + dx, sy),
+                        p2 = src.getRGB(sx, sy + dy), p3 = src.getRGB(sx + dx, sy + dy);
+                // two channels at a time, 10 bits each is plenty for the sum of four bytes
+                int ag = ((p0 >>> 8) & 0x00FF00FF) + ((p1 >>> 8) & 0x00FF00FF)
+                        + ((p2 >>> 8) & 0x00FF00FF) + ((p3 >>> 8) & 0x00FF00FF) + 0x00020002;
+                int rb = (p0 & 0x00FF00FF) + (p1 & 0x00FF00FF) + (p2 & 0x00FF00FF) + (p3 & 0x00FF00FF) + 0x00020002;
+                out[y * width + x] = ((ag << 6) & 0xFF00FF00) | ((rb >>> 2) & 0x00FF00FF);
+            }
+        }
+        return new Level(out, width, height);
+    }
+
+    /**
+     * Level 0, compressed or not. For one off lookups, the raster stage goes through Level's samplers.
+     */
     public final int getRGBbyUV(float u, float v) {
-        int tx = (int)(u * Xf + 0.5f)  % X;
-        int ty = (int)((1.0f - v) * Yf + 0.5f) % Y;
-        if (tx < 0) tx += X;
-        if (ty < 0) ty += Y;
-        return pixels[ty * X + tx];
+        Level level = levels[0];
+        if (!level.isCompressed()) {
+            return level.getRGBbyUV(u, v);
+        }
+        return level.getRGB(Math.floorMod((int)(u * level.width + 0.5f), level.width),
+                Math.floorMod((int)((1.0f - v) * level.height + 0.5f), level.height));
+    }
+
+    public Level getLevel(int level) {
+        return levels[level];
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /**
+     * Level 0 as plain row major ARGB with row 0 at the top. A fresh copy, the texels themselves are tiled (see
+     * Level).
+     */
+    public int[] getPixels() {
+        Level level = levels[0];
+        int[] pixels = new int[level.width * level.height];
+        for (int y = 0; y < level.height; ++y) {
+            for (int x = 0; x < level.width; ++x) {
+                pixels[y * level.width + x] = level.getRGB(x, y);
+            }
+        }
+        return pixels;
+    }
+
+    public int getWidth() {
+        return levels[0].width;
+    }
+
+    public int getHeight() {
+        return levels[0].height;
     }
 }
@@ -1,21 +1,23 @@
 package world;
 
 import math.Vec4;
+import rasterizer.DrawList;
 import rasterizer.MultithreadedRenderer;
 
 import java.util.ArrayList;
-import java.util.List;
 
 public class World {
     public final ArrayList<Mesh> meshes = new ArrayList<>();
-    public final ArrayList<Tri> tris = new ArrayList<>();
+
+    private final DrawList drawList = new DrawList();
 
     public void addMesh(Mesh mesh) {
         meshes.add(mesh);
-        tris.addAll(List.of(mesh.tris));
     }
 
     public void render(MultithreadedRenderer renderer) {
-        meshes.forEach(renderer::renderMesh);
+        drawList.clear();
+        meshes.forEach(drawList::add);
+        renderer.render(drawList);
     }
 }